@@ -0,0 +1,90 @@
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *　　含有spawn的程序运行时使用的共享运行栈。运行栈被等分为若干区段，每个任务（主程序或被spawn的过程）
+ *　　占用一个区段存放自己的堆栈帧，地址在整个运行栈中统一编址，因此静态链可以直接指向其他任务的堆栈帧。
+ *　　访问其他任务区段中的变量，以及本任务还有未结束的子任务时访问变量，都要在Arena对象上同步。
+ *　　全部任务共用一个指令配额，每个任务每次从中取一个时间片。
+ */
+public class Arena {
+	/**
+	 * 整数栈和字符串栈
+	 */
+	final int[] s;
+	final String[] ss;
+
+	/**
+	 * 每个区段的大小
+	 */
+	final int segsize;
+
+	/**
+	 * 以堆栈帧的基址为下标，记下建立该帧时本任务已启动的任务个数。过程返回和join时
+	 * 只等待此后启动的任务，即本过程自己启动的任务
+	 */
+	final int[] marks;
+
+	/**
+	 * 每次从指令配额中取出的时间片大小
+	 */
+	static final int QUANTUM = 4096;
+
+	/**
+	 * 全部任务已经取走的指令数，包括各任务时间片中还没有执行的部分
+	 */
+	final AtomicLong executed = new AtomicLong();
+
+	/**
+	 * 空闲区段的编号
+	 */
+	private ArrayDeque<Integer> free = new ArrayDeque<Integer>();
+
+	/**
+	 * 构造共享运行栈
+	 * @param segments 区段个数，即最多同时运行的任务数
+	 * @param segsize 每个区段的大小
+	 */
+	public Arena(int segments, int segsize) {
+		this.segsize = segsize;
+		s = new int[segments * segsize];
+		ss = new String[segments * segsize];
+		marks = new int[segments * segsize];
+		java.util.Arrays.fill(ss, "");
+		for (int k = 0; k < segments; k++)
+			free.add(k);
+	}
+
+	/**
+	 * 分配一个区段
+	 * @return 区段编号，没有空闲区段时返回-1
+	 */
+	synchronized int acquire() {
+		Integer k = free.poll();
+		return k == null ? -1 : k;
+	}
+
+	/**
+	 * 归还一个区段
+	 * @param k 区段编号
+	 */
+	synchronized void release(int k) {
+		free.push(k);
+	}
+
+	/**
+	 * 从指令配额中取出一个时间片
+	 * @param want 想要执行的指令条数
+	 * @param max 整个程序的指令配额
+	 * @return 可以执行的指令条数，配额用完时为0
+	 */
+	long charge(long want, long max) {
+		for (;;) {
+			long used = executed.get(), n = Math.min(want, max - used);
+			if (n <= 0)
+				return 0;
+			if (executed.compareAndSet(used, used + n))
+				return n;
+		}
+	}
+}
@@ -0,0 +1,294 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ *　　并行后端。语法分析仍是一遍完成的，但每个过程生成完代码后不立即优化，而是登记为一个Unit：
+ *　　过程在原始代码中的区间、层次、堆栈帧大小、内层过程和可见数组的大小。全部分析完后，
+ *　　各过程在线程池中并行优化，一个过程只需等待它的内层过程（提供对外层变量的读取）和它可能
+ *　　内联的过程（提供优化后的代码）；最后按原来的顺序把各过程的代码链接到interp.code。
+ *
+ *　　优化只读原始代码，写各自的Unit，因此不需要加锁；链接时过程内的跳转加上过程的入口地址，
+ *　　调用地址经过原来的跳转（过程说明开头的JMP）找到被调过程，改为它的新入口地址。
+ */
+class Backend {
+	/**
+	 * 一个过程的原始代码及其优化结果
+	 */
+	static class Unit {
+		/**
+		 * 过程名字，主程序为main
+		 */
+		final String name;
+
+		/**
+		 * 过程语句部分所在的层次
+		 */
+		final int lev;
+
+		/**
+		 * 原始代码中过程的入口（INT指令）和终点（OPR 0之后）
+		 */
+		final int from, to;
+
+		/**
+		 * 优化前的堆栈帧大小
+		 */
+		final int dx;
+
+		/**
+		 * 可见数组的层次、起始地址和元素个数，按名字表中的顺序排列
+		 */
+		private final int[] arrays;
+
+		/**
+		 * 直接的内层过程
+		 */
+		final ArrayList<Unit> children = new ArrayList<Unit>();
+
+		/**
+		 * 必须先优化完的过程：内层过程和被调用的已生成完的过程
+		 */
+		private final ArrayList<Unit> deps = new ArrayList<Unit>();
+
+		/**
+		 * 优化后的代码，过程内的跳转地址相对于入口
+		 */
+		Instruction[] code;
+
+		/**
+		 * 优化后的堆栈帧大小
+		 */
+		int size;
+
+		/**
+		 * 本过程及其内层过程读取过的外层变量，每项为 (层次 << 32) | 地址
+		 */
+		HashSet<Long> reads;
+
+		/**
+		 * 内联报告，链接后统一输出
+		 */
+		String report = "";
+
+		/**
+		 * 链接后的入口地址
+		 */
+		int entry;
+
+		private CompletableFuture<Void> done;
+		private Backend backend;
+
+		Unit(String name, int lev, int from, int to, int dx, int[] arrays) {
+			this.name = name;
+			this.lev = lev;
+			this.from = from;
+			this.to = to;
+			this.dx = dx;
+			this.arrays = arrays;
+		}
+
+		/**
+		 * 查找可以内联的被调过程
+		 * @param adr 原始代码中的调用地址
+		 * @return 已优化完的被调过程，不是这样的过程时返回null
+		 */
+		Unit callee(int adr) {
+			Unit u = backend.byEntry.get(adr);
+			return u != null && deps.contains(u) ? u : null;
+		}
+
+		/**
+		 * 查找数组的元素个数
+		 * @param level 数组所在的层次
+		 * @param adr 数组的起始地址
+		 * @return 元素个数，找不到时返回-1
+		 */
+		int arraySize(int level, int adr) {
+			for (int k = arrays.length - 3; k >= 0; k -= 3) {
+				if (arrays[k] == level && arrays[k + 1] == adr)
+					return arrays[k + 2];
+			}
+			return -1;
+		}
+	}
+
+	private Interpreter interp;
+
+	/**
+	 * 全部过程，内层过程在前，主程序在最后
+	 */
+	private final ArrayList<Unit> units = new ArrayList<Unit>();
+
+	/**
+	 * 按原始入口地址索引的过程
+	 */
+	private final HashMap<Integer, Unit> byEntry = new HashMap<Integer, Unit>();
+
+	Backend(Interpreter i) {
+		interp = i;
+	}
+
+	/**
+	 * 登记一个生成完代码的过程
+	 * @param name 过程名字
+	 * @param lev 过程语句部分所在的层次
+	 * @param start 过程说明开头的JMP的地址，它与from之间是内层过程的代码
+	 * @param from 过程入口（INT指令）的地址，从from到interp.cx为该过程的全部代码
+	 * @param dx 过程的堆栈帧大小
+	 * @param table 名字表，其中是此时可见的全部名字
+	 */
+	void add(String name, int lev, int start, int from, int dx, Table table) {
+		ArrayList<Integer> a = new ArrayList<Integer>();
+		for (int k = 1; k <= table.tx; k++) {
+			Table.Item item = table.get(k);
+			if (item.kind == Objekt.array) {
+				a.add(item.level);
+				a.add(item.adr);
+				a.add(item.size);
+			}
+		}
+		int[] arrays = new int[a.size()];
+		for (int k = 0; k < arrays.length; k++)
+			arrays[k] = a.get(k);
+
+		Unit u = new Unit(name, lev, from, interp.cx, dx, arrays);
+		u.backend = this;
+		for (int k = units.size() - 1; k >= 0 && units.get(k).from > start; k--) {
+			Unit c = units.get(k);
+			if (c.lev == lev + 1)
+				u.children.add(0, c);
+		}
+		u.deps.addAll(u.children);
+		for (int k = from; k < u.to; k++) {
+			Instruction in = interp.code[k];
+			if (in.f == Fct.CAL || in.f == Fct.SPN) {
+				Unit c = byEntry.get(in.a.vn);
+				if (c != null && !u.deps.contains(c))
+					u.deps.add(c);
+			}
+		}
+		units.add(u);
+		byEntry.put(from, u);
+	}
+
+	/**
+	 * 登记一个已经优化过的过程（从模块导入的过程），它不再优化，链接时与其他过程一样重新定位
+	 * @param name 过程名字
+	 * @param lev 过程语句部分所在的层次
+	 * @param from 过程入口（INT指令）的地址
+	 * @param to 过程代码的终点
+	 * @param reads 过程读取的外层变量
+	 */
+	void addFixed(String name, int lev, int from, int to, HashSet<Long> reads) {
+		Unit u = new Unit(name, lev, from, to, interp.code[from].a.vn, new int[0]);
+		u.backend = this;
+		u.code = new Instruction[to - from];
+		for (int k = from; k < to; k++) {
+			Instruction in = interp.code[k];
+			if (Optimizer.isJump(in.f))
+				in.a.vn -= from;
+			u.code[k - from] = in;
+		}
+		u.size = u.dx;
+		u.reads = reads;
+		u.done = CompletableFuture.completedFuture(null);
+		units.add(u);
+		byEntry.put(from, u);
+	}
+
+	/**
+	 * 在jobs个线程中优化全部过程，一个过程在它依赖的过程都优化完后开始
+	 * @param jobs 线程数
+	 */
+	void optimize(int jobs) {
+		if (Err.err > 0 || units.isEmpty())
+			return;
+		ForkJoinPool pool = new ForkJoinPool(jobs);
+		try {
+			for (Unit u : units) {
+				if (u.done != null)
+					continue;
+				CompletableFuture<?>[] before = new CompletableFuture<?>[u.deps.size()];
+				for (int k = 0; k < before.length; k++)
+					before[k] = u.deps.get(k).done;
+				u.done = CompletableFuture.allOf(before).thenRunAsync(() -> new Optimizer(interp, u).optimizeUnit(), pool);
+			}
+			for (Unit u : units)
+				u.done.join();
+		} catch (CompletionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Error)
+				throw (Error) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw e;
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * 把优化后的各过程依次放到程序入口的JMP之后，改写跳转和调用地址，替换interp.code，
+	 * 并向优化器登记各过程的名字和入口，供删除不可到达的代码时报告
+	 * @param optimizer 优化器
+	 */
+	void link(Optimizer optimizer) {
+		if (Err.err > 0 || units.isEmpty())
+			return;
+		int cx = 1;
+		for (Unit u : units) {
+			u.entry = cx;
+			cx += u.code.length;
+		}
+		if (cx > PL0.cxmax)
+			throw new Error("Program too long");
+
+		Instruction[] old = interp.code;
+		Instruction[] code = new Instruction[Math.max(old.length, cx)];
+		code[0] = old[0];
+		code[0].a.vn = units.get(units.size() - 1).entry;
+		String[] names = new String[units.size()];
+		int[] entries = new int[units.size()];
+		StringBuilder report = new StringBuilder();
+		for (int k = 0; k < units.size(); k++) {
+			Unit u = units.get(k);
+			for (int j = 0; j < u.code.length; j++) {
+				Instruction in = u.code[j];
+				if (Optimizer.isJump(in.f))
+					in.a.vn += u.entry;
+				else if (Optimizer.isCall(in.f))
+					in.a.vn = resolve(old, in.a.vn).entry;
+				code[u.entry + j] = in;
+			}
+			names[k] = u.name;
+			entries[k] = u.entry;
+			if (!u.report.isEmpty())
+				report.append("INLINE:\n" + u.report);
+		}
+		interp.code = code;
+		interp.cx = cx;
+		optimizer.reuse(new long[0], names, entries);
+
+		if (PL0.listswitch) {
+			System.out.print(report);
+			PL0.fa.print(report);
+			interp.listcode(0);
+		}
+	}
+
+	/**
+	 * 沿原始代码中过程说明开头的JMP找到被调过程
+	 * @param code 原始代码
+	 * @param adr 调用地址
+	 */
+	private Unit resolve(Instruction[] code, int adr) {
+		Unit u;
+		while ((u = byEntry.get(adr)) == null)
+			adr = code[adr].a.vn;
+		return u;
+	}
+}
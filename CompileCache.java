@@ -0,0 +1,241 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *　　增量编译缓存。以过程为单位记录上一次编译的结果：过程在源程序中的行范围、记号的散列值以及
+ *　　生成的代码。再次编译时，记号和可见名字都没有变化的过程直接复用原来的代码，只需重新计算
+ *　　跳转和调用地址，不必再做语法分析、代码生成和优化。
+ */
+public class CompileCache {
+	/**
+	 * 一个过程（连同它的内层过程）的编译结果
+	 */
+	static class Entry {
+		/**
+		 * 分程序记号、可见名字和编译选项的散列值
+		 */
+		long hash;
+		/**
+		 * 分程序在源程序中的起止行号
+		 */
+		int from, to;
+		/**
+		 * 过程的全部代码，过程内的跳转和调用地址都相对于代码起点
+		 */
+		Instruction[] code;
+		/**
+		 * 调用外部过程的CAL指令所调用的过程名，其余指令为null
+		 */
+		String[] ext;
+		/**
+		 * 过程入口（INT指令）的相对地址
+		 */
+		int entry;
+		/**
+		 * 堆栈帧大小
+		 */
+		int size;
+		/**
+		 * 被内联进来的外部过程的名字及其散列值，它们改变后这份代码就不能再用
+		 */
+		String[] deps;
+		long[] depHashes;
+		/**
+		 * 代码对外层变量的读取，供外层过程消除死存储时使用
+		 */
+		long[] reads;
+		/**
+		 * 代码中包含的过程的名字及其入口相对地址
+		 */
+		String[] procs;
+		int[] entries;
+		/**
+		 * 代码本身的散列值，内联了该过程的其他过程用它判断代码是否有变化
+		 */
+		long codeHash;
+	}
+
+	/**
+	 * 缓存文件格式标识
+	 */
+	private static final int MAGIC = 0x4c323402;
+
+	/**
+	 * 上一次编译的结果，按过程路径（如 /outer/inner）索引
+	 */
+	private HashMap<String, Entry> last = new HashMap<String, Entry>();
+
+	/**
+	 * 本次编译的结果
+	 */
+	private HashMap<String, Entry> current = new HashMap<String, Entry>();
+
+	/**
+	 * 复用和重新编译的过程个数
+	 */
+	public int hits = 0, misses = 0;
+
+	/**
+	 * 查找上一次编译的结果
+	 * @param path 过程路径
+	 * @param hash 本次的散列值
+	 * @return 散列值相同的编译结果，没有则返回null
+	 */
+	Entry lookup(String path, long hash) {
+		Entry e = last.get(path);
+		if (e != null && e.hash == hash)
+			return e;
+		return null;
+	}
+
+	/**
+	 * 记录本次编译一个过程的结果
+	 * @param path 过程路径
+	 * @param e 编译结果
+	 */
+	void put(String path, Entry e) {
+		current.put(path, e);
+	}
+
+	/**
+	 * 复用了一个过程，它和它的内层过程在下一次编译时仍然可以复用
+	 * @param path 过程路径
+	 */
+	void reuse(String path) {
+		hits ++;
+		for (Map.Entry<String, Entry> e : last.entrySet()) {
+			if (e.getKey().equals(path) || e.getKey().startsWith(path + "/"))
+				current.put(e.getKey(), e.getValue());
+		}
+	}
+
+	/**
+	 * 一次编译结束。编译成功时本次的结果成为下一次编译的依据，否则保留上一次的结果
+	 * @param ok 是否编译成功
+	 */
+	void commit(boolean ok) {
+		if (ok)
+			last = current;
+		current = new HashMap<String, Entry>();
+	}
+
+	/**
+	 * 从文件读入缓存，文件不存在或格式不对时缓存为空
+	 * @param fname 文件名
+	 */
+	public void load(String fname) {
+		HashMap<String, Entry> map = new HashMap<String, Entry>();
+		try (DataInputStream in = new DataInputStream(new java.io.BufferedInputStream(new FileInputStream(fname)))) {
+			if (in.readInt() != MAGIC)
+				return;
+			int n = in.readInt();
+			for (int k = 0; k < n; k++) {
+				String path = in.readUTF();
+				Entry e = new Entry();
+				e.hash = in.readLong();
+				e.codeHash = in.readLong();
+				e.from = in.readInt();
+				e.to = in.readInt();
+				e.entry = in.readInt();
+				e.size = in.readInt();
+				int len = in.readInt();
+				e.code = new Instruction[len];
+				e.ext = new String[len];
+				for (int i = 0; i < len; i++) {
+					e.code[i] = readInstruction(in);
+					e.ext[i] = in.readBoolean() ? in.readUTF() : null;
+				}
+				len = in.readInt();
+				e.deps = new String[len];
+				e.depHashes = new long[len];
+				for (int i = 0; i < len; i++) {
+					e.deps[i] = in.readUTF();
+					e.depHashes[i] = in.readLong();
+				}
+				len = in.readInt();
+				e.reads = new long[len];
+				for (int i = 0; i < len; i++)
+					e.reads[i] = in.readLong();
+				len = in.readInt();
+				e.procs = new String[len];
+				e.entries = new int[len];
+				for (int i = 0; i < len; i++) {
+					e.procs[i] = in.readUTF();
+					e.entries[i] = in.readInt();
+				}
+				map.put(path, e);
+			}
+			last = map;
+		} catch (IOException | IllegalArgumentException e) {
+			// 没有可用的缓存，全部重新编译
+		}
+	}
+
+	/**
+	 * 把缓存写入文件
+	 * @param fname 文件名
+	 */
+	public void save(String fname) {
+		try (DataOutputStream out = new DataOutputStream(new java.io.BufferedOutputStream(new FileOutputStream(fname)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(last.size());
+			for (Map.Entry<String, Entry> me : last.entrySet()) {
+				Entry e = me.getValue();
+				out.writeUTF(me.getKey());
+				out.writeLong(e.hash);
+				out.writeLong(e.codeHash);
+				out.writeInt(e.from);
+				out.writeInt(e.to);
+				out.writeInt(e.entry);
+				out.writeInt(e.size);
+				out.writeInt(e.code.length);
+				for (int i = 0; i < e.code.length; i++) {
+					writeInstruction(out, e.code[i]);
+					out.writeBoolean(e.ext[i] != null);
+					if (e.ext[i] != null)
+						out.writeUTF(e.ext[i]);
+				}
+				out.writeInt(e.deps.length);
+				for (int i = 0; i < e.deps.length; i++) {
+					out.writeUTF(e.deps[i]);
+					out.writeLong(e.depHashes[i]);
+				}
+				out.writeInt(e.reads.length);
+				for (long r : e.reads)
+					out.writeLong(r);
+				out.writeInt(e.procs.length);
+				for (int i = 0; i < e.procs.length; i++) {
+					out.writeUTF(e.procs[i]);
+					out.writeInt(e.entries[i]);
+				}
+			}
+		} catch (IOException e) {
+			System.out.println("Can't write compile cache " + fname);
+		}
+	}
+
+	static Instruction readInstruction(DataInputStream in) throws IOException {
+		Instruction i = new Instruction();
+		i.f = Fct.valueOf(in.readUTF());
+		i.l = in.readInt();
+		i.a = in.readBoolean() ? new Data(in.readInt()) : new Data(in.readUTF());
+		i.line = in.readInt();
+		return i;
+	}
+
+	static void writeInstruction(DataOutputStream out, Instruction i) throws IOException {
+		out.writeUTF(i.f.name());
+		out.writeInt(i.l);
+		out.writeBoolean(i.a.isNum());
+		if (i.a.isNum())
+			out.writeInt(i.a.vn);
+		else
+			out.writeUTF(i.a.vs);
+		out.writeInt(i.line);
+	}
+}
@@ -0,0 +1,295 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ *　　常驻的编译运行服务。在一个长期运行的JVM中监听Unix域套接字，编译器和解释器的热点代码一直保持
+ *　　JIT编译后的状态，每个请求不再付出JVM启动和冷启动的代价。每个连接是一个请求：客户端先送来源程序，
+ *　　之后陆续送来输入行，服务端编译后运行，程序的输出一边产生一边送回，最后送回结束状态。
+ *
+ *　　连接上的每一帧是一个标记字节和一个字符串（长度加UTF-8字节）：
+ *　　客户端发送SOURCE（源程序）、INPUT（一行输入）和CLOSE（输入结束）；
+ *　　服务端发送OUTPUT（程序输出）、DIAGNOSTIC（带错误标记的源程序清单等）和EXIT（HALTED、ABORTED或ERROR）。
+ *　　客户端在程序结束前断开时，服务端在下一个时间片结束时停止运行该程序。
+ *
+ *　　用法：java Daemon [-socket 路径] [-maxinsn n] [-maxstack n]，套接字默认为l24.sock，
+ *　　配额用于每个请求；客户端见DaemonClient。
+ */
+public class Daemon {
+	static final byte SOURCE = 'S', INPUT = 'I', CLOSE = 'C';
+	static final byte OUTPUT = 'O', DIAGNOSTIC = 'D', EXIT = 'X';
+
+	/**
+	 * 默认的套接字路径
+	 */
+	static final String SOCKET = "l24.sock";
+
+	/**
+	 * 每次运行的指令条数，两次之间检查客户端是否已经断开
+	 */
+	static final long slice = 1 << 20;
+
+	private final Path path;
+	private final ServerSocketChannel server;
+
+	/**
+	 * 处理连接和读取输入的线程
+	 */
+	private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "pl0-daemon");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	/**
+	 * 每个请求的运行配额
+	 */
+	long maxInstructions = Long.MAX_VALUE;
+	int maxStack = 0;
+
+	/**
+	 * 在给定路径上打开套接字，原来的套接字文件被删除
+	 * @param socket 套接字路径
+	 */
+	public Daemon(String socket) throws IOException {
+		path = Paths.get(socket);
+		Files.deleteIfExists(path);
+		server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		server.bind(UnixDomainSocketAddress.of(path));
+	}
+
+	/**
+	 * 接受连接，每个连接在自己的线程中处理，直到close()才返回
+	 */
+	public void serve() {
+		while (server.isOpen()) {
+			try {
+				SocketChannel ch = server.accept();
+				executor.execute(() -> handle(ch));
+			} catch (IOException e) {
+				if (server.isOpen())
+					System.out.println("Can't accept connection: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * 在后台线程中接受连接
+	 */
+	public void start() {
+		executor.execute(this::serve);
+	}
+
+	/**
+	 * 关闭套接字并删除套接字文件，正在处理的请求不受影响
+	 */
+	public void close() {
+		try {
+			server.close();
+			Files.deleteIfExists(path);
+		} catch (IOException e) {
+			// 已经关闭
+		}
+	}
+
+	/**
+	 * 处理一个请求：编译，运行，送回输出和结束状态
+	 */
+	private void handle(SocketChannel ch) {
+		try (SocketChannel c = ch) {
+			DataInputStream in = new DataInputStream(input(c));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output(c)));
+			if (in.readByte() != SOURCE)
+				throw new IOException("expected source");
+			String source = Interpreter.readString(in);
+
+			Program program;
+			try {
+				program = Program.compile(source);
+			} catch (Error e) {
+				send(out, DIAGNOSTIC, e.getMessage());
+				send(out, EXIT, "ERROR");
+				return;
+			}
+
+			LineChannel lines = new LineChannel();
+			Request r = new Request();
+			executor.execute(() -> pump(in, lines, r));
+			PrintStream po = new PrintStream(new BufferedOutputStream(new Frames(out), 8192), true, StandardCharsets.UTF_8);
+			BufferedReader stdin = new BufferedReader(lines, 256);
+			Interpreter interp = program.instance(stdin, po);
+			interp.maxInstructions = maxInstructions;
+			if (maxStack > 0)
+				interp.maxStack = maxStack;
+			interp.start();
+			Status st;
+			while ((st = interp.run(slice)) != Status.HALTED && st != Status.ABORTED && !r.gone) {
+				if (st == Status.RUNNING)
+					continue;
+				String line = stdin.readLine();
+				if (line == null)
+					interp.closeInput();
+				else
+					interp.provide(line);
+			}
+			if (r.gone)
+				return;
+			if (st == Status.ABORTED) {
+				po.println();
+				po.println("Aborted: " + interp.error);
+			}
+			po.flush();
+			send(out, EXIT, st.name());
+		} catch (IOException e) {
+			// 客户端已经断开
+		}
+	}
+
+	/**
+	 * 一个请求的状态，由读取输入的线程设置
+	 */
+	private static class Request {
+		volatile boolean gone;
+	}
+
+	/**
+	 * 把客户端送来的输入行放入程序的输入通道，连接断开时关闭通道并标记请求
+	 */
+	private static void pump(DataInputStream in, LineChannel lines, Request r) {
+		try {
+			for (;;) {
+				byte tag = in.readByte();
+				String s = Interpreter.readString(in);
+				if (tag == INPUT)
+					lines.send(s);
+				else if (tag == CLOSE)
+					lines.close();
+			}
+		} catch (IOException e) {
+			r.gone = true;
+			lines.close();
+		}
+	}
+
+	/**
+	 * 发送一帧并立即送出
+	 */
+	static void send(DataOutputStream out, byte tag, String s) throws IOException {
+		synchronized (out) {
+			out.writeByte(tag);
+			Interpreter.writeString(out, s);
+			out.flush();
+		}
+	}
+
+	/**
+	 * 把写入的每一段作为一个OUTPUT帧送出，PrintStream每输出一行就写入一段
+	 */
+	private static class Frames extends OutputStream {
+		private final DataOutputStream out;
+
+		Frames(DataOutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(int c) throws IOException {
+			write(new byte[] { (byte) c }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] buf, int off, int len) throws IOException {
+			send(out, OUTPUT, new String(buf, off, len, StandardCharsets.UTF_8));
+		}
+	}
+
+	/**
+	 * 套接字的输入流。不用Channels.newInputStream()，它与newOutputStream()在同一个锁上同步，
+	 * 一个线程阻塞在读上时另一个线程不能写
+	 */
+	static InputStream input(SocketChannel ch) {
+		return new InputStream() {
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] buf, int off, int len) throws IOException {
+				if (len == 0)
+					return 0;
+				return ch.read(ByteBuffer.wrap(buf, off, len));
+			}
+		};
+	}
+
+	/**
+	 * 套接字的输出流
+	 */
+	static OutputStream output(SocketChannel ch) {
+		return new OutputStream() {
+			@Override
+			public void write(int c) throws IOException {
+				write(new byte[] { (byte) c }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] buf, int off, int len) throws IOException {
+				ByteBuffer bb = ByteBuffer.wrap(buf, off, len);
+				while (bb.hasRemaining())
+					ch.write(bb);
+			}
+		};
+	}
+
+	public static void main(String[] args) throws IOException {
+		String socket = SOCKET;
+		long maxinsn = Long.MAX_VALUE;
+		int maxstack = 0;
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			switch (args[i]) {
+			case "-socket":
+				socket = args[i + 1];
+				break;
+			case "-maxinsn":
+				maxinsn = Long.parseLong(args[i + 1]);
+				break;
+			case "-maxstack":
+				maxstack = Integer.parseInt(args[i + 1]);
+				break;
+			default:
+				System.out.println("Unknown option " + args[i]);
+				return;
+			}
+		}
+		Daemon d = new Daemon(socket);
+		d.maxInstructions = maxinsn;
+		d.maxStack = maxstack;
+		Runtime.getRuntime().addShutdownHook(new Thread(d::close));
+		// 先编译运行一个小程序，第一个请求不必等待类加载
+		Program.compile(new StringReader("main { var x; x = 1; }"), null).run("");
+		System.out.println("listening on " + socket);
+		d.serve();
+	}
+}
@@ -0,0 +1,120 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ *　　常驻服务的延迟测试。对同一个程序比较三种方式的每次请求耗时：
+ *　　cold——每次启动一个新的JVM运行java PL0；client——每次启动一个新的JVM运行DaemonClient，
+ *　　由常驻服务编译运行；warm——在本JVM中直接向常驻服务发请求，只有套接字往返、编译和运行的时间。
+ *　　常驻服务在本JVM中启动，第一个warm请求单独列出，它包含服务端的冷启动。
+ *
+ *　　用法：java DaemonBench [-n 次数] [-cold 次数] [-socket 路径] 源程序 [输入文件]，
+ *　　默认warm请求200次，启动新JVM的两种方式各5次。各次的输出必须与第一次相同。
+ */
+public class DaemonBench {
+	public static void main(String[] args) throws Exception {
+		int n = 200, cold = 5;
+		String socket = "bench.sock", fname = null, input = "";
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+			case "-n":
+				n = Integer.parseInt(args[++i]);
+				break;
+			case "-cold":
+				cold = Integer.parseInt(args[++i]);
+				break;
+			case "-socket":
+				socket = args[++i];
+				break;
+			default:
+				if (fname == null)
+					fname = args[i];
+				else
+					input = new String(Files.readAllBytes(Paths.get(args[i])), StandardCharsets.UTF_8);
+			}
+		}
+		if (fname == null) {
+			System.out.println("Usage: java DaemonBench [-n count] [-cold count] [-socket path] file [input]");
+			return;
+		}
+		String source = new String(Files.readAllBytes(Paths.get(fname)), StandardCharsets.UTF_8);
+		socket = new File(socket).getAbsolutePath();
+		Daemon daemon = new Daemon(socket);
+		daemon.start();
+
+		String expect = null;
+		double[] warm = new double[n];
+		double first = 0;
+		for (int k = 0; k <= n; k++) {
+			ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			PrintStream out = new PrintStream(buf, true, StandardCharsets.UTF_8);
+			long t0 = System.nanoTime();
+			String status = DaemonClient.request(socket, source, new StringReader(input), out, out);
+			double ms = (System.nanoTime() - t0) / 1e6;
+			String text = status + "\n" + buf.toString(StandardCharsets.UTF_8);
+			if (expect == null)
+				expect = text;
+			else if (!text.equals(expect))
+				throw new Error("request " + k + " produced different output");
+			if (k == 0)
+				first = ms;
+			else
+				warm[k - 1] = ms;
+		}
+		System.out.println("status: " + expect.substring(0, expect.indexOf('\n')));
+
+		String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+		String cp = System.getProperty("java.class.path");
+		File dir = Files.createTempDirectory("l24bench").toFile();
+		String path = new File(fname).getAbsolutePath();
+		double[] pl0 = new double[cold], client = new double[cold];
+		for (int k = 0; k < cold; k++) {
+			pl0[k] = spawn(dir, path + "\nn\nn\n" + input, java, "-cp", cp, "PL0");
+			client[k] = spawn(dir, input, java, "-cp", cp, "DaemonClient", "-socket", socket, path);
+		}
+		daemon.close();
+		for (File f : dir.listFiles())
+			f.delete();
+		dir.delete();
+
+		System.out.printf("%-8s %6s %10s %10s %10s %10s%n", "mode", "runs", "min(ms)", "median", "p90", "max");
+		report("cold", pl0);
+		report("client", client);
+		System.out.printf("%-8s %6d %10.2f%n", "first", 1, first);
+		report("warm", warm);
+	}
+
+	/**
+	 * 启动一个进程，送入输入并等待它结束
+	 * @return 耗时(ms)
+	 */
+	static double spawn(File dir, String input, String... cmd) throws IOException, InterruptedException {
+		ProcessBuilder pb = new ProcessBuilder(cmd);
+		pb.directory(dir);
+		pb.redirectErrorStream(true);
+		pb.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+		long t0 = System.nanoTime();
+		Process p = pb.start();
+		try (OutputStream in = p.getOutputStream()) {
+			in.write(input.getBytes(StandardCharsets.UTF_8));
+		}
+		p.waitFor();
+		return (System.nanoTime() - t0) / 1e6;
+	}
+
+	static void report(String mode, double[] ms) {
+		if (ms.length == 0)
+			return;
+		double[] v = ms.clone();
+		Arrays.sort(v);
+		System.out.printf("%-8s %6d %10.2f %10.2f %10.2f %10.2f%n", mode, v.length, v[0], v[v.length / 2],
+				v[(int) Math.min(v.length - 1, Math.round(v.length * 0.9))], v[v.length - 1]);
+	}
+}
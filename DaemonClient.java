@@ -0,0 +1,104 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ *　　常驻服务Daemon的客户端：把源程序送给服务端，把标准输入逐行转发给程序，程序的输出原样写到标准输出，
+ *　　源程序有错时把带错误标记的清单写到标准错误。退出码为0（正常结束）、1（编译错误）或2（程序被终止）。
+ *
+ *　　用法：java DaemonClient [-socket 路径] 源程序
+ */
+public class DaemonClient {
+	/**
+	 * 发送一个请求并等待程序结束
+	 * @param socket 服务端的套接字路径
+	 * @param source 源程序
+	 * @param input 程序的输入，在另一个线程中逐行转发，读到末尾时关闭程序的输入
+	 * @param out 程序的输出
+	 * @param diagnostics 编译错误信息
+	 * @return 结束状态：HALTED、ABORTED或ERROR
+	 */
+	public static String request(String socket, String source, Reader input, PrintStream out, PrintStream diagnostics)
+			throws IOException {
+		try (SocketChannel ch = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+			ch.connect(UnixDomainSocketAddress.of(socket));
+			DataInputStream in = new DataInputStream(Daemon.input(ch));
+			DataOutputStream o = new DataOutputStream(new BufferedOutputStream(Daemon.output(ch)));
+			Daemon.send(o, Daemon.SOURCE, source);
+
+			Thread pump = new Thread(() -> {
+				try {
+					BufferedReader r = new BufferedReader(input);
+					String line;
+					while ((line = r.readLine()) != null)
+						Daemon.send(o, Daemon.INPUT, line);
+					Daemon.send(o, Daemon.CLOSE, "");
+				} catch (IOException e) {
+					// 程序已经结束，服务端关闭了连接
+				}
+			}, "pl0-input");
+			pump.setDaemon(true);
+			pump.start();
+
+			for (;;) {
+				byte tag = in.readByte();
+				String s = Interpreter.readString(in);
+				switch (tag) {
+				case Daemon.OUTPUT:
+					out.print(s);
+					out.flush();
+					break;
+				case Daemon.DIAGNOSTIC:
+					diagnostics.print(s);
+					break;
+				case Daemon.EXIT:
+					return s;
+				default:
+					throw new IOException("unknown frame " + tag);
+				}
+			}
+		}
+	}
+
+	public static void main(String[] args) {
+		String socket = Daemon.SOCKET, fname = null;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-socket") && i + 1 < args.length)
+				socket = args[++i];
+			else
+				fname = args[i];
+		}
+		if (fname == null) {
+			System.out.println("Usage: java DaemonClient [-socket path] file");
+			System.exit(1);
+		}
+		String source;
+		try {
+			source = new String(Files.readAllBytes(Paths.get(fname)), StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			System.out.println("Can't open file!");
+			System.exit(1);
+			return;
+		}
+		String status;
+		try {
+			status = request(socket, source, new InputStreamReader(System.in), System.out, System.err);
+		} catch (IOException e) {
+			System.out.println("Can't connect to " + socket + ": " + e.getMessage());
+			System.exit(1);
+			return;
+		}
+		System.exit(status.equals("HALTED") ? 0 : status.equals("ERROR") ? 1 : 2);
+	}
+}
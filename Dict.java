@@ -0,0 +1,305 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ *　　map类型的存储：开放定址（线性探查）的散列表，键为整数或字符串，值为整数。
+ *　　键和值都存放在基本类型数组中，存取时不需要装箱。
+ */
+public class Dict {
+	/**
+	 * 键是否为字符串
+	 */
+	final boolean str;
+
+	/**
+	 * 整数键、字符串键及其散列值，按键的类型只使用其中之一
+	 */
+	private int[] ikeys;
+	private String[] skeys;
+	private int[] hashes;
+
+	/**
+	 * 值
+	 */
+	private int[] vals;
+
+	/**
+	 * 槽位是否已被占用
+	 */
+	private boolean[] used;
+
+	/**
+	 * 元素个数
+	 */
+	private int size;
+
+	/**
+	 * 槽位个数减一，槽位个数总是2的幂
+	 */
+	private int mask;
+
+	/**
+	 * 构造空表
+	 * @param str 键是否为字符串
+	 */
+	public Dict(boolean str) {
+		this.str = str;
+		alloc(8);
+	}
+
+	private void alloc(int n) {
+		if (str) {
+			skeys = new String[n];
+			hashes = new int[n];
+		} else {
+			ikeys = new int[n];
+		}
+		vals = new int[n];
+		used = new boolean[n];
+		mask = n - 1;
+	}
+
+	/**
+	 * @return 元素个数
+	 */
+	public int size() {
+		return size;
+	}
+
+	private static int mix(int h) {
+		h *= 0x9e3779b9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * 查找整数键
+	 * @return 键所在的槽位；不存在时返回 ~插入位置
+	 */
+	private int find(int key) {
+		int k = mix(key) & mask;
+		while (used[k]) {
+			if (ikeys[k] == key)
+				return k;
+			k = (k + 1) & mask;
+		}
+		return ~k;
+	}
+
+	/**
+	 * 查找字符串键
+	 * @return 键所在的槽位；不存在时返回 ~插入位置
+	 */
+	private int find(String key, int h) {
+		int k = h & mask;
+		while (used[k]) {
+			if (hashes[k] == h && skeys[k].equals(key))
+				return k;
+			k = (k + 1) & mask;
+		}
+		return ~k;
+	}
+
+	/**
+	 * @return 键对应的值，键不存在时返回0
+	 */
+	public int get(int key) {
+		int k = find(key);
+		return k < 0 ? 0 : vals[k];
+	}
+
+	public int get(String key) {
+		int k = find(key, mix(key.hashCode()));
+		return k < 0 ? 0 : vals[k];
+	}
+
+	public boolean contains(int key) {
+		return find(key) >= 0;
+	}
+
+	public boolean contains(String key) {
+		return find(key, mix(key.hashCode())) >= 0;
+	}
+
+	/**
+	 * 存入一个键值对
+	 * @return 是否新增了元素
+	 */
+	public boolean put(int key, int val) {
+		int k = find(key);
+		if (k >= 0) {
+			vals[k] = val;
+			return false;
+		}
+		if (grow())
+			k = find(key);
+		k = ~k;
+		used[k] = true;
+		ikeys[k] = key;
+		vals[k] = val;
+		size++;
+		return true;
+	}
+
+	public boolean put(String key, int val) {
+		int h = mix(key.hashCode());
+		int k = find(key, h);
+		if (k >= 0) {
+			vals[k] = val;
+			return false;
+		}
+		if (grow())
+			k = find(key, h);
+		k = ~k;
+		used[k] = true;
+		skeys[k] = key;
+		hashes[k] = h;
+		vals[k] = val;
+		size++;
+		return true;
+	}
+
+	/**
+	 * 写入快照：键的类型、元素个数和每个键值对
+	 */
+	void write(DataOutputStream out) throws IOException {
+		out.writeBoolean(str);
+		out.writeInt(size);
+		for (int k = 0; k <= mask; k++) {
+			if (!used[k])
+				continue;
+			if (str)
+				Interpreter.writeString(out, skeys[k]);
+			else
+				out.writeInt(ikeys[k]);
+			out.writeInt(vals[k]);
+		}
+	}
+
+	/**
+	 * 从快照读出一个map
+	 */
+	static Dict read(DataInputStream in) throws IOException {
+		Dict d = new Dict(in.readBoolean());
+		int n = in.readInt();
+		for (int k = 0; k < n; k++) {
+			if (d.str)
+				d.put(Interpreter.readString(in), in.readInt());
+			else
+				d.put(in.readInt(), in.readInt());
+		}
+		return d;
+	}
+
+	/**
+	 * 再加入一个元素后装载因子将超过3/4时把槽位加倍并重新插入全部元素
+	 * @return 是否重新分配了槽位
+	 */
+	private boolean grow() {
+		if ((size + 1) * 4 <= (mask + 1) * 3)
+			return false;
+		int[] ik = ikeys, hs = hashes, vs = vals;
+		String[] sk = skeys;
+		boolean[] us = used;
+		alloc((mask + 1) * 2);
+		for (int j = 0; j < us.length; j++) {
+			if (!us[j])
+				continue;
+			int k = str ? ~find(sk[j], hs[j]) : ~find(ik[j]);
+			used[k] = true;
+			if (str) {
+				skeys[k] = sk[j];
+				hashes[k] = hs[j];
+			} else {
+				ikeys[k] = ik[j];
+			}
+			vals[k] = vs[j];
+		}
+		return true;
+	}
+}
+
+/**
+ *　　运行中的全部map。堆栈帧中只存放map的编号，过程入口创建本过程的map，出口释放；
+ *　　编号0不使用，释放的编号留待再用。被spawn的任务与主程序共用一个DictHeap。
+ */
+class DictHeap {
+	private Dict[] dicts = new Dict[16];
+
+	/**
+	 * 已释放的编号
+	 */
+	private int[] free = new int[16];
+	private int nfree = 0;
+
+	/**
+	 * 从未使用过的最小编号
+	 */
+	private int top = 1;
+
+	/**
+	 * 创建一个空的map
+	 * @param str 键是否为字符串
+	 * @return map的编号
+	 */
+	int alloc(boolean str) {
+		int h;
+		if (nfree > 0) {
+			h = free[--nfree];
+		} else {
+			if (top == dicts.length)
+				dicts = java.util.Arrays.copyOf(dicts, top * 2);
+			h = top++;
+		}
+		dicts[h] = new Dict(str);
+		return h;
+	}
+
+	Dict get(int h) {
+		return dicts[h];
+	}
+
+	/**
+	 * 写入快照：编号的使用情况和每个map
+	 */
+	void write(DataOutputStream out) throws IOException {
+		out.writeInt(top);
+		for (int h = 1; h < top; h++) {
+			out.writeBoolean(dicts[h] != null);
+			if (dicts[h] != null)
+				dicts[h].write(out);
+		}
+		out.writeInt(nfree);
+		for (int k = 0; k < nfree; k++)
+			out.writeInt(free[k]);
+	}
+
+	/**
+	 * 从快照读出全部map
+	 */
+	static DictHeap read(DataInputStream in) throws IOException {
+		DictHeap heap = new DictHeap();
+		heap.top = in.readInt();
+		heap.dicts = new Dict[Math.max(16, heap.top)];
+		for (int h = 1; h < heap.top; h++) {
+			if (in.readBoolean())
+				heap.dicts[h] = Dict.read(in);
+		}
+		heap.nfree = in.readInt();
+		heap.free = new int[Math.max(16, heap.nfree)];
+		for (int k = 0; k < heap.nfree; k++)
+			heap.free[k] = in.readInt();
+		return heap;
+	}
+
+	/**
+	 * 释放一个map
+	 * @param h map的编号
+	 */
+	void release(int h) {
+		dicts[h] = null;
+		if (nfree == free.length)
+			free = java.util.Arrays.copyOf(free, nfree * 2);
+		free[nfree++] = h;
+	}
+}
@@ -15,7 +15,7 @@ public class Err {
 		char[] s = new char[PL0.lex.cc-1];
 		java.util.Arrays.fill(s, ' ');
 		String space = new String(s);
-		System.out.println("****" + space + "!" + errcode);
+		PL0.console.println("****" + space + "!" + errcode);
 		PL0.fa1.println("****" + space + "!" + errcode);
 		err ++;
 	}
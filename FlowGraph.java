@@ -0,0 +1,138 @@
+import java.util.ArrayList;
+
+/**
+ *　　基本块：一段只能从第一条指令进入、从最后一条指令离开的连续代码
+ */
+class Block {
+	/**
+	 * 第一条指令的地址
+	 */
+	public int start;
+
+	/**
+	 * 最后一条指令的下一个地址
+	 */
+	public int end;
+
+	/**
+	 * 后继基本块，包括跳转目标、顺序执行的下一块以及被调用过程的入口
+	 */
+	public ArrayList<Block> succ = new ArrayList<Block>();
+
+	/**
+	 * 是否能从程序入口到达
+	 */
+	public boolean reachable;
+}
+
+/**
+ *　　控制流图。把code[from, to)按跳转指令和跳转、调用目标划分为基本块，并连接块之间的控制流。
+ */
+public class FlowGraph {
+	/**
+	 * 按地址排列的基本块
+	 */
+	public ArrayList<Block> blocks = new ArrayList<Block>();
+
+	/**
+	 * 每个地址所在的基本块
+	 */
+	private Block[] blockAt;
+
+	/**
+	 * 被划分的代码区间的起点
+	 */
+	private int from;
+
+	/**
+	 * 构造控制流图
+	 * @param code 虚拟机代码
+	 * @param from 区间起点
+	 * @param to 区间终点（不含）
+	 */
+	public FlowGraph(Instruction[] code, int from, int to) {
+		this.from = from;
+		boolean[] leader = new boolean[to - from + 1];
+		leader[0] = true;
+		for (int k = from; k < to; k++) {
+			Instruction in = code[k];
+			if (Optimizer.isJump(in.f) || Optimizer.isCall(in.f)) {
+				if (in.a.vn >= from && in.a.vn < to)
+					leader[in.a.vn - from] = true;
+			}
+			if (Optimizer.isJump(in.f) || isReturn(in) || in.f == Fct.TCL)
+				leader[k + 1 - from] = true;
+		}
+
+		blockAt = new Block[to - from];
+		Block b = null;
+		for (int k = from; k < to; k++) {
+			if (leader[k - from]) {
+				b = new Block();
+				b.start = k;
+				blocks.add(b);
+			}
+			b.end = k + 1;
+			blockAt[k - from] = b;
+		}
+
+		for (int n = 0; n < blocks.size(); n++) {
+			b = blocks.get(n);
+			for (int k = b.start; k < b.end; k++) {
+				if (Optimizer.isCall(code[k].f))
+					link(b, code[k].a.vn);
+			}
+			Instruction last = code[b.end - 1];
+			if (Optimizer.isJump(last.f))
+				link(b, last.a.vn);
+			if (last.f != Fct.JMP && last.f != Fct.TCL && !isReturn(last) && n + 1 < blocks.size())
+				b.succ.add(blocks.get(n + 1));
+		}
+	}
+
+	/**
+	 * 获得某个地址所在的基本块
+	 * @param adr 指令地址
+	 * @return 所在基本块，地址不在区间内时返回null
+	 */
+	public Block block(int adr) {
+		if (adr < from || adr >= from + blockAt.length)
+			return null;
+		return blockAt[adr - from];
+	}
+
+	/**
+	 * 从入口出发标记所有可以到达的基本块
+	 * @param entry 入口地址
+	 */
+	public void markReachable(int entry) {
+		ArrayList<Block> work = new ArrayList<Block>();
+		Block b = block(entry);
+		if (b == null)
+			return;
+		b.reachable = true;
+		work.add(b);
+		while (!work.isEmpty()) {
+			b = work.remove(work.size() - 1);
+			for (Block s : b.succ) {
+				if (!s.reachable) {
+					s.reachable = true;
+					work.add(s);
+				}
+			}
+		}
+	}
+
+	private void link(Block b, int adr) {
+		Block s = block(adr);
+		if (s != null)
+			b.succ.add(s);
+	}
+
+	/**
+	 * 判断是否为过程返回指令OPR 0
+	 */
+	static boolean isReturn(Instruction in) {
+		return in.f == Fct.OPR && in.a.vn == 0;
+	}
+}
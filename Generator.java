@@ -0,0 +1,240 @@
+import java.util.Random;
+
+/**
+ *　　合成L24程序的生成器，用于测试编译器和解释器随程序规模的伸缩性。生成的程序总是合法、总会结束，
+ *　　结构如下：
+ *
+ *　　main声明vars个全局变量和strings个字符串变量，随后是procs个过程，它们组成若干条嵌套深度为depth
+ *　　（不超过PL0.levmax）的过程链，每个过程有两个局部变量，调用自己的内层过程；主程序先给全部变量赋值，
+ *　　然后循环iters次，每次做若干赋值、调用每条链的最外层过程并拼接字符串，最后输出全部变量。
+ *　　表达式是深度为expr的随机二叉树，叶子为可见的变量或常数。
+ *
+ *　　用法：java Generator [-vars n] [-procs n] [-depth n] [-expr n] [-iters n] [-strings n] [-seed n]，
+ *　　程序写到标准输出。
+ */
+public class Generator {
+	/**
+	 * 全局变量个数
+	 */
+	int vars = 10;
+
+	/**
+	 * 过程个数
+	 */
+	int procs = 4;
+
+	/**
+	 * 过程嵌套深度，最外层过程为1
+	 */
+	int depth = 2;
+
+	/**
+	 * 表达式树的深度
+	 */
+	int expr = 3;
+
+	/**
+	 * 主循环的次数
+	 */
+	long iters = 100;
+
+	/**
+	 * 每次循环的字符串拼接次数，0表示不使用字符串
+	 */
+	int strings = 0;
+
+	/**
+	 * 随机数种子，相同的参数和种子生成相同的程序
+	 */
+	long seed = 1;
+
+	/**
+	 * 每次循环中的赋值语句条数
+	 */
+	static final int body = 8;
+
+	private Random rnd;
+	private StringBuilder sb;
+
+	/**
+	 * 设置一个参数
+	 * @param name 参数名（不含前面的-）
+	 * @param value 参数值
+	 * @return 是否认识这个参数
+	 */
+	boolean set(String name, long value) {
+		switch (name) {
+		case "vars":
+			vars = (int) Math.max(1, value);
+			break;
+		case "procs":
+			procs = (int) value;
+			break;
+		case "depth":
+			depth = (int) value;
+			break;
+		case "expr":
+			expr = (int) value;
+			break;
+		case "iters":
+			iters = value;
+			break;
+		case "strings":
+			strings = (int) value;
+			break;
+		case "seed":
+			seed = value;
+			break;
+		default:
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * 生成程序
+	 * @return 源程序
+	 */
+	public String generate() {
+		rnd = new Random(seed);
+		sb = new StringBuilder();
+		int d = Math.max(1, Math.min(depth, PL0.levmax));
+		int chains = (procs + d - 1) / d;
+
+		sb.append("main {\n    var i, n");
+		for (int k = 0; k < vars; k++)
+			sb.append(k % 16 == 0 ? ",\n        " : ", ").append('v').append(k);
+		sb.append(";\n");
+		if (strings > 0) {
+			sb.append("    str w");
+			for (int k = 0; k < strings; k++)
+				sb.append(", s").append(k);
+			sb.append(";\n");
+		}
+
+		int left = procs;
+		for (int c = 0; c < chains; c++) {
+			int n = Math.min(d, left);
+			left -= n;
+			procedure(c, 1, n, "    ");
+		}
+
+		for (int k = 0; k < vars; k++)
+			sb.append("    v").append(k).append(" = ").append(rnd.nextInt(PL0.amax) + 1).append(";\n");
+		for (int k = 0; k < strings; k++)
+			sb.append("    s").append(k).append(" = \"").append((char) ('a' + k % 26)).append("\";\n");
+		sb.append("    n = ").append(literal(iters)).append(";\n");
+		sb.append("    i = 0;\n");
+		sb.append("    while (i < n) {\n");
+		for (int k = 0; k < body; k++)
+			assign("        ", null);
+		for (int c = 0; c < chains; c++)
+			sb.append("        call p").append(c).append("d1;\n");
+		if (strings > 0) {
+			sb.append("        w = \"\";\n");
+			for (int k = 0; k < strings; k++)
+				sb.append("        w = w + s").append(rnd.nextInt(strings)).append(";\n");
+		}
+		sb.append("        i = i + 1;\n");
+		sb.append("    };\n");
+		for (int k = 0; k < vars; k += 8) {
+			sb.append("    print(v").append(k);
+			for (int j = k + 1; j < Math.min(vars, k + 8); j++)
+				sb.append(", v").append(j);
+			sb.append(");\n");
+		}
+		if (strings > 0)
+			sb.append("    print(w);\n");
+		sb.append("}\n");
+		return sb.toString();
+	}
+
+	/**
+	 * 生成一条过程链中第level层及其内层的过程
+	 * @param chain 链的编号
+	 * @param level 过程的层次，最外层为1
+	 * @param n 链的深度
+	 * @param indent 缩进
+	 */
+	private void procedure(int chain, int level, int n, String indent) {
+		String name = "p" + chain + "d" + level;
+		String[] locals = { "a" + level, "b" + level };
+		sb.append(indent).append("procedure ").append(name).append(":\n");
+		sb.append(indent).append("    var ").append(locals[0]).append(", ").append(locals[1]).append(";\n");
+		if (level < n)
+			procedure(chain, level + 1, n, indent + "    ");
+		sb.append(indent).append("{\n");
+		String in = indent + "    ";
+		for (String l : locals)
+			sb.append(in).append(l).append(" = ").append(rnd.nextInt(PL0.amax) + 1).append(";\n");
+		for (int k = 0; k < 4; k++)
+			assign(in, level);
+		if (level < n)
+			sb.append(in).append("call p").append(chain).append('d').append(level + 1).append(";\n");
+		sb.append(indent).append("};\n");
+	}
+
+	/**
+	 * 生成一条赋值语句。在过程中时一半赋给局部变量，另一半赋给全局变量
+	 * @param level 所在过程的层次，主程序中为null
+	 */
+	private void assign(String indent, Integer level) {
+		String target;
+		if (level != null && rnd.nextBoolean())
+			target = (rnd.nextBoolean() ? "a" : "b") + (rnd.nextInt(level) + 1);
+		else
+			target = "v" + rnd.nextInt(vars);
+		sb.append(indent).append(target).append(" = ");
+		expression(expr, level == null ? 0 : level);
+		sb.append(";\n");
+	}
+
+	/**
+	 * 生成一个随机表达式。除法的除数总是非零常数，结果可能溢出，解释器按int环绕
+	 * @param d 表达式树的深度
+	 * @param level 所在过程的层次，决定可见的局部变量
+	 */
+	private void expression(int d, int level) {
+		if (d <= 0) {
+			int r = rnd.nextInt(4);
+			if (r == 0)
+				sb.append(rnd.nextInt(PL0.amax) + 1);
+			else if (r == 1 && level > 0)
+				sb.append(rnd.nextBoolean() ? 'a' : 'b').append(rnd.nextInt(level) + 1);
+			else
+				sb.append('v').append(rnd.nextInt(vars));
+			return;
+		}
+		sb.append('(');
+		expression(d - 1, level);
+		int op = rnd.nextInt(4);
+		if (op == 3) {
+			sb.append(" / ").append(rnd.nextInt(PL0.amax) + 1);
+		} else {
+			sb.append(op == 0 ? " + " : op == 1 ? " - " : " * ");
+			expression(d - 1, level);
+		}
+		sb.append(')');
+	}
+
+	/**
+	 * 常数不能超过PL0.amax，更大的数写成以1000为基的表达式
+	 * @param v 非负整数
+	 */
+	static String literal(long v) {
+		if (v <= PL0.amax)
+			return Long.toString(v);
+		return "(" + literal(v / 1000) + " * 1000 + " + v % 1000 + ")";
+	}
+
+	public static void main(String[] args) {
+		Generator g = new Generator();
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			if (!args[i].startsWith("-") || !g.set(args[i].substring(1), Long.parseLong(args[i + 1]))) {
+				System.out.println("Unknown option " + args[i]);
+				return;
+			}
+		}
+		System.out.print(g.generate());
+	}
+}
@@ -1,8 +1,35 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
 /**
  * 类P-Code指令类型
  */
 enum Fct {
-	LIT, OPR, LOD, STO, CAL, INT, JMP, JPC, STOS, LODS, LITS
+	LIT, OPR, LOD, STO, CAL, INT, JMP, JPC, STOS, LODS, LITS,
+	JEQ, JNE, JLT, JGE, JGT, JLE, JEV, SPN, LDA, STA, CHK, TCL
+}
+
+/**
+ * 解释器的运行状态：时间片用完仍在运行，等待输入，已经结束，超出配额被终止
+ */
+enum Status {
+	RUNNING, NEEDS_INPUT, HALTED, ABORTED
 }
 
 /**
@@ -23,6 +50,11 @@ class Instruction {
 	 * 指令参数
 	 */
 	public Data a;
+
+	/**
+	 * 生成该指令时所在的源程序行号，从1开始，0表示未知（如优化器生成的临时变量代码）
+	 */
+	public int line;
 }
 
 /**
@@ -31,6 +63,9 @@ class Instruction {
 public class Interpreter {
 	// 解释执行时使用的栈大小
 	final int stacksize = 500;
+
+	// 运行栈在maxStack之外为表达式的操作数预留的空间，程序中有更深的表达式时按最深的预留
+	final int operands = 64;
 	
 	/**
 	 * 虚拟机代码指针，取值范围[0, cxmax-1] 
@@ -38,9 +73,194 @@ public class Interpreter {
 	public int cx = 0;
 	
 	/**
-	 * 存放虚拟机代码的数组
+	 * 存放虚拟机代码的数组，不够时由reserve()加倍
+	 */
+	public Instruction[] code = new Instruction[256];
+
+	/**
+	 * 程序的输入，为null时使用PL0.stdin
+	 */
+	public BufferedReader stdin;
+
+	/**
+	 * 程序的输出，为null时使用System.out
+	 */
+	public PrintStream stdout;
+
+	/**
+	 * 输入输出的记录，为null时使用PL0.fa2
+	 */
+	public PrintStream record;
+
+	/**
+	 * 丢弃一切输出的流，各会话共用，不需要记录输入输出时作为record
+	 */
+	public static final PrintStream DISCARD = new PrintStream(OutputStream.nullOutputStream());
+
+	/**
+	 * 运行状态：指令指针，基址，栈顶指针，整数栈和字符串栈
+	 */
+	private int p, b, t;
+	private int[] s;
+	private String[] ss;
+
+	/**
+	 * 运行时使用的输出和输入输出记录
+	 */
+	private PrintStream out, fa2;
+
+	/**
+	 * 尚未被scan读取的输入行
+	 */
+	private ConcurrentLinkedQueue<String> input = new ConcurrentLinkedQueue<String>();
+
+	/**
+	 * 输入是否已经关闭
+	 */
+	private volatile boolean inputClosed = false;
+
+	/**
+	 * 程序的运行状态
+	 */
+	private Status status = Status.HALTED;
+
+	// 运行配额，用于运行不可信的程序。为了不拖慢解释器，指令数借用run()本来就有的时间片计数，
+	// 堆栈深度在INT分配堆栈帧时检查，字符串只在产生新字符串的运算中累计
+	/**
+	 * 一次运行最多执行的指令条数
+	 */
+	public long maxInstructions = Long.MAX_VALUE;
+
+	/**
+	 * 运行栈最大深度（堆栈帧所占的单元数）
+	 */
+	public int maxStack = stacksize;
+
+	/**
+	 * 一次运行中运算和scan产生的字符串总长度上限（按字符数计）
+	 */
+	public long maxStringBytes = Long.MAX_VALUE;
+
+	/**
+	 * 本次运行的使用量：已执行指令数，运行栈的最大深度，产生的字符串总长度
+	 */
+	public long executed;
+	public int peakStack;
+	public long stringBytes;
+
+	/**
+	 * 程序被终止的原因
+	 */
+	public String error;
+
+	/**
+	 * 含有spawn的程序使用的共享运行栈，没有spawn时为null
+	 */
+	private Arena arena;
+
+	/**
+	 * 已计入RuntimeStats的字符串长度和运行栈深度，以及是否计入了未结束的解释器个数
+	 */
+	private long reportedBytes;
+	private int reportedDepth;
+	private boolean live = false;
+
+	/**
+	 * 执行轨迹的记录，为null时不记录。被spawn的任务不记录
+	 */
+	public TraceBuffer trace;
+
+	/**
+	 * 运行中的全部map，与本任务启动的任务共用
+	 */
+	private DictHeap dicts;
+
+	/**
+	 * 本任务在运行栈中的区段[lo, hi)及其编号
 	 */
-	public Instruction[] code = new Instruction[PL0.cxmax];
+	private int lo, hi, seg;
+
+	/**
+	 * 是否为被spawn的过程，这样的任务不能scan
+	 */
+	private boolean spawned = false;
+
+	/**
+	 * 启动本任务的任务，主程序为null
+	 */
+	private Interpreter parent;
+
+	/**
+	 * 本任务已被终止，它启动的任务（包括间接启动的）在下一个时间片开始时停止
+	 */
+	private volatile boolean stop = false;
+
+	/**
+	 * 本任务启动的尚未join的任务
+	 */
+	private ArrayList<Interpreter> children;
+	private ArrayList<ForkJoinTask<?>> tasks;
+
+	/**
+	 * 构造代码生成器
+	 */
+	public Interpreter() {
+	}
+
+	/**
+	 * 为已编译的程序构造一个独立的解释器，代码在解释执行时不会被修改，因此与原解释器共用
+	 * @param program 编译生成的程序
+	 * @param in 程序的输入
+	 * @param out 程序的输出
+	 */
+	public Interpreter(Interpreter program, BufferedReader in, PrintStream out) {
+		code = program.code;
+		cx = program.cx;
+		stdin = in;
+		stdout = out;
+		record = DISCARD;
+		maxInstructions = program.maxInstructions;
+		maxStack = program.maxStack;
+		maxStringBytes = program.maxStringBytes;
+	}
+
+	/**
+	 * 构造运行被spawn过程的任务，它在共享运行栈中自己的区段里建立堆栈帧，返回地址为0，
+	 * 过程返回时任务即结束
+	 * @param parent 启动任务的解释器
+	 * @param seg 分配给任务的区段
+	 * @param link 被调过程的静态链
+	 * @param entry 被调过程的入口地址
+	 */
+	private Interpreter(Interpreter parent, int seg, int link, int entry) {
+		code = parent.code;
+		cx = parent.cx;
+		out = parent.out;
+		fa2 = parent.fa2;
+		maxInstructions = parent.maxInstructions;
+		maxStack = parent.maxStack;
+		maxStringBytes = parent.maxStringBytes;
+		arena = parent.arena;
+		dicts = parent.dicts;
+		s = arena.s;
+		ss = arena.ss;
+		this.parent = parent;
+		this.seg = seg;
+		lo = seg * arena.segsize;
+		hi = lo + arena.segsize;
+		spawned = true;
+		live = true;
+		RuntimeStats.active.increment();
+		children = new ArrayList<Interpreter>();
+		tasks = new ArrayList<ForkJoinTask<?>>();
+		s[lo] = link;
+		s[lo+1] = lo;
+		s[lo+2] = 0;
+		arena.marks[lo] = 0;
+		t = b = lo;
+		p = entry;
+		status = Status.RUNNING;
+	}
 	
 	/**
 	 * 生成虚拟机代码
@@ -53,10 +273,12 @@ public class Interpreter {
 			throw new Error("Program too long");
 		}
 		
+		reserve(cx + 1);
 		code[cx] = new Instruction();
 		code[cx].f = x;
 		code[cx].l = y;
 		code[cx].a = z.clone();
+		code[cx].line = PL0.lex == null ? 0 : PL0.lex.line(PL0.lex.position());
 		cx ++;
 	}
 
@@ -71,13 +293,24 @@ public class Interpreter {
 			throw new Error("Program too long");
 		}
 		
+		reserve(cx + 1);
 		code[cx] = new Instruction();
 		code[cx].f = x;
 		code[cx].l = y;
 		code[cx].a = new Data(z);
+		code[cx].line = PL0.lex == null ? 0 : PL0.lex.line(PL0.lex.position());
 		cx ++;
 	}
 
+	/**
+	 * 保证code数组至少能存放n条指令
+	 * @param n 指令条数
+	 */
+	void reserve(int n) {
+		if (n > code.length)
+			code = java.util.Arrays.copyOf(code, Math.max(n, code.length * 2));
+	}
+
 	/**
 	 * 输出目标代码清单
 	 * @param start 开始输出的位置
@@ -93,176 +326,821 @@ public class Interpreter {
 	}
 	
 	/**
-	 * 解释程序
+	 * 解释程序，直到程序结束才返回，scan从stdin读取输入
 	 */
 	public void interpret() {
-		int p, b, t;						// 指令指针，指令基址，栈顶指针
-		Instruction i;							// 存放当前指令
-		Data[] s = new Data[stacksize];		// 栈
-		for (int _i = 0; _i < stacksize; _i++) {
-			s[_i] = new Data();
+		start();
+		resume(null, 0);
+	}
+
+	/**
+	 * 继续运行已经start()或restore()的程序，直到程序结束才返回，scan从stdin读取输入
+	 * @param checkpoint 快照文件名，为null时不做快照
+	 * @param every 每执行这么多条指令做一次快照
+	 */
+	public void resume(String checkpoint, long every) {
+		BufferedReader in = stdin != null ? stdin : PL0.stdin;
+		Status st;
+		while ((st = run(checkpoint == null ? Long.MAX_VALUE : every)) != Status.HALTED && st != Status.ABORTED) {
+			if (st == Status.RUNNING) {
+				try {
+					if (checkpoint != null && canSnapshot())
+						snapshot(checkpoint);
+				} catch (IOException e) {
+					System.out.println("Can't write snapshot " + checkpoint);
+				}
+				continue;
+			}
+			String line = null;
+			try {
+				line = in.readLine();
+			} catch (Exception e) {}
+			if (line == null)
+				closeInput();
+			else
+				provide(line);
 		}
-		
-		System.out.println("start pl0");
+		if (status == Status.ABORTED) {
+			out.println();
+			out.println("Aborted: " + error);
+		}
+	}
+
+	/**
+	 * 准备从头运行程序：分配运行栈并清空输入
+	 */
+	public void start() {
+		allocate();
+		input.clear();
+		inputClosed = false;
+		status = Status.RUNNING;
 		t = b = p = 0;
-		s[0] = new Data(0);
-		s[1] = new Data(0);
-		s[2] = new Data(0);
-		do {
-			i = code[p];					// 读当前指令
-			p ++;
-			switch (i.f) {
-			case LIT:				// 将a的值取到栈顶
-				s[t].change(i.a.vn);
-				t++;
+		s[0] = s[1] = s[2] = 0;
+		executed = stringBytes = 0;
+		stop = false;
+		peakStack = 0;
+		reportedBytes = 0;
+		RuntimeStats.stackDepth.add(-reportedDepth);
+		reportedDepth = 0;
+		if (!live)
+			RuntimeStats.active.increment();
+		live = true;
+		error = null;
+		out.println("start pl0");
+	}
+
+	/**
+	 * 确定输出流，分配运行栈和map
+	 */
+	private void allocate() {
+		out = stdout != null ? stdout : System.out;
+		fa2 = record != null ? record : PL0.fa2;
+		arena = null;
+		int size = maxStack + Math.max(operands, operandDepth() + 3);	// 还要放下CAL压入的3个单元
+		for (int k = 0; k < cx; k++) {
+			if (code[k].f == Fct.SPN) {
+				arena = new Arena(PL0.spnmax, size);
 				break;
-			case OPR:				// 数学、逻辑运算
-				switch (i.a.vn)
-				{
-				case 0:
-					t = b;
-					p = s[t+2].vn;
-					b = s[t+1].vn;
+			}
+		}
+		if (arena != null) {
+			seg = arena.acquire();
+			s = arena.s;
+			ss = arena.ss;
+			children = new ArrayList<Interpreter>();
+			tasks = new ArrayList<ForkJoinTask<?>>();
+		} else {
+			seg = 0;
+			s = new int[size];
+			ss = new String[size];
+			java.util.Arrays.fill(ss, "");
+		}
+		lo = 0;
+		hi = size;
+		dicts = new DictHeap();
+	}
+
+	/**
+	 * 表达式求值最多同时占用的栈单元数。语句之间栈为空，跳转前后栈的深度相同，
+	 * 因此按指令顺序累计每条指令弹出和压入的值的个数就得到任何时刻的深度。
+	 * 任务的区段在INT检查的配额之外留出这么多单元，操作数就不会写进下一个区段
+	 */
+	private int operandDepth() {
+		int d = 0, max = 0;
+		for (int k = 0; k < cx; k++) {
+			d = Math.max(0, d - Optimizer.pops(code[k])) + Optimizer.pushes(code[k]);
+			max = Math.max(max, d);
+		}
+		return max;
+	}
+
+	/**
+	 * 快照文件格式标识
+	 */
+	private static final int SNAPSHOT = 0x4c323453;
+
+	/**
+	 * @return 现在能否做快照：run()已经返回，并且没有仍在运行的被spawn的任务
+	 */
+	public boolean canSnapshot() {
+		return tasks == null || tasks.isEmpty();
+	}
+
+	/**
+	 * 把程序的运行状态写入快照：代码、p/b/t、运行栈中[0, t)的整数和字符串、全部map、
+	 * 尚未读取的输入、配额和使用量。只能在两次run()之间调用
+	 * @param out 输出流
+	 */
+	public void snapshot(DataOutputStream out) throws IOException {
+		if (!canSnapshot())
+			throw new IllegalStateException("spawned tasks are still running");
+		out.writeInt(SNAPSHOT);
+		out.writeInt(cx);
+		for (int k = 0; k < cx; k++)
+			CompileCache.writeInstruction(out, code[k]);
+		out.writeUTF(status.name());
+		out.writeBoolean(error != null);
+		if (error != null)
+			out.writeUTF(error);
+		out.writeInt(p);
+		out.writeInt(b);
+		out.writeInt(t);
+		for (int k = 0; k < t; k++)
+			out.writeInt(s[k]);
+		for (int k = 0; k < t; k++)
+			writeString(out, ss[k]);
+		dicts.write(out);
+		String[] lines = input.toArray(new String[0]);
+		out.writeInt(lines.length);
+		for (String line : lines)
+			writeString(out, line);
+		out.writeBoolean(inputClosed);
+		out.writeLong(maxInstructions);
+		out.writeInt(maxStack);
+		out.writeLong(maxStringBytes);
+		out.writeLong(executed);
+		out.writeInt(peakStack);
+		out.writeLong(stringBytes);
+	}
+
+	/**
+	 * 把快照写入文件。先写临时文件再改名，写到一半时进程退出也不会破坏原来的快照
+	 * @param fname 文件名
+	 */
+	public void snapshot(String fname) throws IOException {
+		String tmp = fname + ".new";
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+			snapshot(out);
+		}
+		Files.move(Paths.get(tmp), Paths.get(fname), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * 从快照恢复一个解释器，之后用run()或resume()从快照处继续运行。输出流在恢复时按stdout、
+	 * record为null确定，需要时先设置PL0.fa2
+	 * @param in 输入流
+	 * @return 恢复的解释器
+	 */
+	public static Interpreter restore(DataInputStream in) throws IOException {
+		if (in.readInt() != SNAPSHOT)
+			throw new IOException("not a snapshot");
+		Interpreter r = new Interpreter();
+		r.cx = in.readInt();
+		r.code = new Instruction[Math.max(r.cx, 1)];
+		for (int k = 0; k < r.cx; k++)
+			r.code[k] = CompileCache.readInstruction(in);
+		r.status = Status.valueOf(in.readUTF());
+		r.error = in.readBoolean() ? in.readUTF() : null;
+		r.p = in.readInt();
+		r.b = in.readInt();
+		r.t = in.readInt();
+		int[] s = new int[r.t];
+		String[] ss = new String[r.t];
+		for (int k = 0; k < r.t; k++)
+			s[k] = in.readInt();
+		for (int k = 0; k < r.t; k++)
+			ss[k] = readString(in);
+		DictHeap dicts = DictHeap.read(in);
+		int n = in.readInt();
+		for (int k = 0; k < n; k++)
+			r.input.add(readString(in));
+		r.inputClosed = in.readBoolean();
+		r.maxInstructions = in.readLong();
+		r.maxStack = in.readInt();
+		r.maxStringBytes = in.readLong();
+		r.executed = in.readLong();
+		r.peakStack = in.readInt();
+		r.stringBytes = in.readLong();
+
+		r.allocate();
+		if (r.t > r.hi)
+			throw new IOException("snapshot stack exceeds maxStack");
+		System.arraycopy(s, 0, r.s, 0, r.t);
+		System.arraycopy(ss, 0, r.ss, 0, r.t);
+		r.dicts = dicts;
+		r.reportedBytes = r.stringBytes;			// 快照之前的使用量不计入本进程的统计
+		if (r.arena != null)
+			r.arena.executed.set(r.executed);
+		if (r.status != Status.HALTED && r.status != Status.ABORTED) {
+			r.live = true;
+			RuntimeStats.active.increment();
+		}
+		return r;
+	}
+
+	/**
+	 * 写入一个字符串。writeUTF()限制在64K字节以内，运行中产生的字符串可能更长
+	 */
+	static void writeString(DataOutputStream out, String str) throws IOException {
+		byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * 从快照文件恢复一个解释器
+	 * @param fname 文件名
+	 */
+	public static Interpreter restore(String fname) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fname)))) {
+			return restore(in);
+		}
+	}
+
+	/**
+	 * 为程序提供一行输入，可以在其他线程中调用
+	 * @param line 一行输入
+	 */
+	public void provide(String line) {
+		input.add(line);
+	}
+
+	/**
+	 * 关闭输入，此后scan读到文件尾（整数为0），可以在其他线程中调用
+	 */
+	public void closeInput() {
+		inputClosed = true;
+	}
+
+	/**
+	 * @return 本次运行的资源使用情况
+	 */
+	public String usage() {
+		return "instructions: " + executed + ", max stack: " + peakStack + ", string bytes: " + stringBytes;
+	}
+
+	/**
+	 * 超出配额，终止程序
+	 * @param msg 原因
+	 */
+	private void abort(String msg) {
+		status = Status.ABORTED;
+		error = msg;
+	}
+
+	/**
+	 * 在新任务中运行过程。任务由ForkJoinPool执行，在共享运行栈中占用一个区段
+	 * @param link 被调过程的静态链
+	 * @param entry 被调过程的入口地址
+	 * @return 是否启动了任务，没有空闲区段时返回false，由调用者像CAL一样同步调用
+	 */
+	private boolean spawn(int link, int entry) {
+		int k = arena.acquire();
+		if (k < 0)
+			return false;
+		Interpreter child = new Interpreter(this, k, link, entry);
+		children.add(child);
+		tasks.add(ForkJoinPool.commonPool().submit(() -> child.run(Long.MAX_VALUE)));
+		return true;
+	}
+
+	/**
+	 * 等待当前过程启动的任务结束，它们对变量的修改此后都可以看到。任务的资源使用量计入本任务
+	 * @param from 建立当前堆栈帧时已启动的任务个数，在此之前启动的任务属于调用者，不等待
+	 * @return 是否都正常结束，有任务被终止时本任务也被终止
+	 */
+	private boolean join(int from) {
+		boolean ok = true;
+		for (int k = from; k < tasks.size(); k++) {
+			tasks.get(k).join();
+			Interpreter child = children.get(k);
+			arena.release(child.seg);
+			executed += child.executed;
+			stringBytes += child.stringBytes;
+			reportedBytes += child.stringBytes;		// 子任务已经自己计入了RuntimeStats
+			peakStack = Math.max(peakStack, child.peakStack);
+			if (child.status == Status.ABORTED && ok) {
+				abort(child.error);
+				ok = false;
+			}
+		}
+		tasks.subList(from, tasks.size()).clear();
+		children.subList(from, children.size()).clear();
+		return ok;
+	}
+
+	/**
+	 * 从整个程序的指令配额中取下一个时间片
+	 * @param rest 本次run()还可以执行的指令条数
+	 * @return 时间片大小，配额用完、本次run()已执行够或者本任务要停止时为0
+	 */
+	private long take(long rest) {
+		if (rest <= 0 || cancelled())
+			return 0;
+		return arena.charge(Math.min(rest, Arena.QUANTUM), maxInstructions);
+	}
+
+	/**
+	 * @return 本任务或启动它的某个任务是否已被终止
+	 */
+	private boolean cancelled() {
+		for (Interpreter x = this; x != null; x = x.parent) {
+			if (x.stop)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * 本任务被终止时，让它启动的任务都停下来并等待它们结束，归还它们的区段。
+	 * 它们的使用量照常计入本任务，终止的原因仍是本任务的
+	 */
+	private void cancel() {
+		String msg = error;
+		stop = true;
+		join(0);
+		error = msg;
+	}
+
+	/**
+	 * 执行map的运算。栈中的map以编号表示
+	 * @param op 运算编号：25、26创建整数、字符串键的map，27、30取值，28、31存入，29、32判断键是否存在，33释放
+	 * @param s 整数栈
+	 * @param ss 字符串栈
+	 * @param t 栈顶指针
+	 * @return 运算后的栈顶指针
+	 */
+	private int dict(int op, int[] s, String[] ss, int t) {
+		switch (op) {
+		case 25: case 26:
+			s[t++] = dicts.alloc(op == 26);
+			break;
+		case 27:
+			t--;
+			s[t-1] = dicts.get(s[t-1]).get(s[t]);
+			break;
+		case 28:
+			t -= 3;
+			dicts.get(s[t]).put(s[t+1], s[t+2]);
+			break;
+		case 29:
+			t--;
+			s[t-1] = dicts.get(s[t-1]).contains(s[t]) ? 1 : 0;
+			break;
+		case 30:
+			t--;
+			s[t-1] = dicts.get(s[t-1]).get(ss[t]);
+			break;
+		case 31:
+			t -= 3;
+			dicts.get(s[t]).put(ss[t+1], s[t+2]);
+			break;
+		case 32:
+			t--;
+			s[t-1] = dicts.get(s[t-1]).contains(ss[t]) ? 1 : 0;
+			break;
+		case 33:
+			t--;
+			dicts.release(s[t]);
+			break;
+		}
+		return t;
+	}
+
+	/**
+	 * @return 程序当前的运行状态
+	 */
+	public Status status() {
+		return status;
+	}
+
+	/**
+	 * 解释程序。整数与字符串分别存放在两个栈中，二者共用同一个栈顶指针，某个位置上的值是
+	 * 整数还是字符串在编译时就已经确定，因此运行时不再检查值的类型。
+	 * 最多执行slice条指令，scan没有可用的输入时提前返回，停在该scan上，之后可以再次调用继续运行
+	 * @param slice 本次最多执行的指令条数
+	 * @return 返回时程序的状态
+	 */
+	public Status run(long slice) {
+		if (status == Status.HALTED || status == Status.ABORTED)
+			return status;
+		int p = this.p, b = this.b, t = this.t;		// 指令指针，指令基址，栈顶指针
+		Instruction i;							// 存放当前指令
+		int[] s = this.s;						// 整数栈
+		String[] ss = this.ss;					// 字符串栈
+		String line;
+		int a;
+		int lo = this.lo, hi = this.hi;			// 本任务的运行栈区段
+		Arena arena = this.arena;				// 共享运行栈，访问其他任务可见的变量时在它上面同步
+		TraceBuffer trace = this.trace;
+		long budget = arena == null ? Math.min(slice, maxInstructions - executed) : 0;
+		long n = budget;
+		
+		status = Status.RUNNING;
+		try {
+			exec:
+			for (;;) {
+				if (n == 0) {
+					// 有spawn时各任务共用指令配额，用完一个时间片再取下一个
+					if (arena == null || (n = take(slice - budget)) == 0)
+						break;
+					budget += n;
+				}
+				n --;
+				i = code[p];					// 读当前指令
+				if (trace != null)
+					trace.record(p, i.f.ordinal(), t > lo ? s[t-1] : 0);
+				p ++;
+				switch (i.f) {
+				case LIT:				// 将a的值取到栈顶
+					s[t] = i.a.vn;
+					t++;
 					break;
-				case 1:
-					s[t-1].change(-s[t-1].vn);
+				case OPR:				// 数学、逻辑运算
+					switch (i.a.vn)
+					{
+					case 0:
+						if (arena != null && tasks.size() > arena.marks[b]) {		// 返回前等待本过程启动的任务
+							arena.executed.addAndGet(-n);		// 等待时退回时间片，子任务可以用这些配额
+							budget -= n;
+							n = 0;
+							if (!join(arena.marks[b]))
+								break exec;
+						}
+						t = b;
+						p = s[t+2];
+						b = s[t+1];
+						break;
+					case 1:
+						s[t-1] = -s[t-1];
+						break;
+					case 2:		// +
+						t--;
+						s[t-1] = s[t-1] + s[t];
+						break;
+					case 3:		// -
+						t--;
+						s[t-1] = s[t-1] - s[t];
+						break;
+					case 4:		// *
+						t--;
+						s[t-1] = s[t-1] * s[t];
+						break;
+					case 5:		// /
+						t--;
+						s[t-1] = s[t-1] / s[t];
+						break;
+					case 6:		// % 2
+						s[t-1] = s[t-1] % 2;
+						break;
+					case 8:		// ==
+						t--;
+						s[t-1] = s[t-1] == s[t] ? 1 : 0;
+						break;
+					case 9:		// !=
+						t--;
+						s[t-1] = s[t-1] != s[t] ? 1 : 0;
+						break;
+					case 10:	// <
+						t--;
+						s[t-1] = s[t-1] < s[t] ? 1 : 0;
+						break;
+					case 11:	// >=
+						t--;
+						s[t-1] = s[t-1] >= s[t] ? 1 : 0;
+						break;
+					case 12:	// >
+						t--;
+						s[t-1] = s[t-1] > s[t] ? 1 : 0;
+						break;
+					case 13:	// <=
+						t--;
+						s[t-1] = s[t-1] <= s[t] ? 1 : 0;
+						break;
+					case 14:	// print num
+						out.print(s[t-1]);
+						fa2.print(s[t-1]);
+						t--;
+						break;
+					case 15:	// print "\n"
+						out.println();
+						fa2.println();
+						break;
+					case 16:	// scan num
+						if (spawned) {
+							abort("scan in spawned procedure");
+							break exec;
+						}
+						line = input.poll();
+						if (line == null && !inputClosed) {
+							p --;					// 等待输入，下次从这条指令继续
+							n ++;
+							status = Status.NEEDS_INPUT;
+							break exec;
+						}
+						s[t] = 0;
+						try {
+							s[t] = Integer.parseInt(line);
+						} catch (Exception e) {}
+						fa2.println(s[t]);
+						t++;
+						break;
+					case 17:	// print " "
+						out.print(" ");
+						fa2.print(" ");
+						break;
+					case 18:	// str + str
+						t--;
+						ss[t-1] = ss[t-1] + ss[t];
+						if ((stringBytes += ss[t-1].length()) > maxStringBytes) {
+							abort("string quota exceeded");
+							break exec;
+						}
+						break;
+					case 19:	// str * num
+						t--;
+						if (s[t] > 0 && (stringBytes += (long) String.valueOf(ss[t-1]).length() * s[t]) > maxStringBytes) {
+							abort("string quota exceeded");		// 在分配之前检查
+							break exec;
+						}
+						StringBuilder sb = new StringBuilder();
+						for (int _i = 0; _i < s[t]; _i++) {
+							sb.append(ss[t-1]);
+						}
+						ss[t-1] = sb.toString();
+						break;
+					case 20:	// scan str
+						if (spawned) {
+							abort("scan in spawned procedure");
+							break exec;
+						}
+						line = input.poll();
+						if (line == null && !inputClosed) {
+							p --;
+							n ++;
+							status = Status.NEEDS_INPUT;
+							break exec;
+						}
+						ss[t] = line;
+						if (line != null && (stringBytes += line.length()) > maxStringBytes) {
+							abort("string quota exceeded");
+							break exec;
+						}
+						fa2.println(ss[t]);
+						t++;
+						break;
+					case 21:	// print str
+						out.print(ss[t-1]);
+						fa2.print(ss[t-1]);
+						t--;
+						break;
+					case 22:	// num -> str
+						ss[t-1] = Integer.toString(s[t-1]);
+						stringBytes += ss[t-1].length();
+						break;
+					case 23:	// str -> num
+						try {
+							s[t-1] = Integer.parseInt(ss[t-1]);
+						} catch (NumberFormatException e) {
+							s[t-1] = 0;
+						}
+						break;
+					case 24:	// join
+						if (arena != null && tasks.size() > arena.marks[b]) {
+							arena.executed.addAndGet(-n);
+							budget -= n;
+							n = 0;
+							if (!join(arena.marks[b]))
+								break exec;
+						}
+						break;
+					case 25: case 26: case 27: case 28: case 29: case 30: case 31: case 32: case 33:
+						if (arena != null) {
+							synchronized (dicts) {
+								t = dict(i.a.vn, s, ss, t);
+							}
+						} else {
+							t = dict(i.a.vn, s, ss, t);
+						}
+						break;
+					}
 					break;
-				case 2:		// +
-					t--;
-					s[t-1].change(s[t-1].vn + s[t].vn);
+				case LOD:				// 取相对当前过程的数据基地址为a的内存的值到栈顶
+					a = base(i.l,s,b)+i.a.vn;
+					if (arena != null && (a < lo || a >= hi || tasks.size() > arena.marks[b])) {
+						synchronized (arena) {
+							s[t] = s[a];
+						}
+					} else {
+						s[t] = s[a];
+					}
+					t++;
 					break;
-				case 3:		// -
+				case STO:				// 栈顶的值存到相对当前过程的数据基地址为a的内存
 					t--;
-					s[t-1].change(s[t-1].vn - s[t].vn);
+					a = base(i.l, s, b) + i.a.vn;
+					if (arena != null && (a < lo || a >= hi || tasks.size() > arena.marks[b])) {
+						synchronized (arena) {
+							s[a] = s[t];
+						}
+					} else {
+						s[a] = s[t];
+					}
 					break;
-				case 4:		// *
-					t--;
-					s[t-1].change(s[t-1].vn * s[t].vn);
+				case CAL:				// 调用子过程
+					if (arena != null)
+						arena.marks[t] = tasks.size();
+					s[t] = base(i.l, s, b); 	// 将静态作用域基地址入栈
+					s[t+1] = b;					// 将动态作用域基地址入栈
+					s[t+2] = p;					// 将当前指令指针入栈
+					b = t;  					// 改变基地址指针值为新过程的基地址
+					p = i.a.vn;   					// 跳转
 					break;
-				case 5:		// /
-					t--;
-					s[t-1].change(s[t-1].vn / s[t].vn);
+				case TCL:				// 尾调用：被调过程重用当前堆栈帧，动态链和返回地址不变
+					s[b] = base(i.l, s, b);
+					t = b;
+					p = i.a.vn;
+					break;
+				case SPN:				// 在新任务中调用子过程
+					a = base(i.l, s, b);
+					if (!spawn(a, i.a.vn)) {		// 没有空闲区段时像CAL一样同步调用
+						arena.marks[t] = tasks.size();
+						s[t] = a;
+						s[t+1] = b;
+						s[t+2] = p;
+						b = t;
+						p = i.a.vn;
+					}
 					break;
-				case 6:		// % 2
-					s[t-1].change(s[t-1].vn % 2);
+				case INT:			// 分配内存
+					t += i.a.vn;
+					if (t - lo > peakStack) {
+						peakStack = t - lo;
+						if (peakStack > maxStack) {
+							abort("stack quota exceeded");
+							break exec;
+						}
+					}
 					break;
-				case 8:		// ==
-					t--;
-					s[t-1].change(s[t-1].vn == s[t].vn ? 1 : 0);
+				case JMP:				// 直接跳转
+					p = i.a.vn;
 					break;
-				case 9:		// !=
+				case JPC:				// 条件跳转（当栈顶为0的时候跳转）
 					t--;
-					s[t-1].change(s[t-1].vn != s[t].vn ? 1 : 0);
+					if (s[t] == 0)
+						p = i.a.vn;
 					break;
-				case 10:	// <
-					t--;
-					s[t-1].change(s[t-1].vn < s[t].vn ? 1 : 0);
+				case JEQ:				// 比较次栈顶与栈顶，满足关系时跳转
+					t -= 2;
+					if (s[t] == s[t+1])
+						p = i.a.vn;
 					break;
-				case 11:	// >=
-					t--;
-					s[t-1].change(s[t-1].vn >= s[t].vn ? 1 : 0);
+				case JNE:
+					t -= 2;
+					if (s[t] != s[t+1])
+						p = i.a.vn;
 					break;
-				case 12:	// >
-					t--;
-					s[t-1].change(s[t-1].vn > s[t].vn ? 1 : 0);
+				case JLT:
+					t -= 2;
+					if (s[t] < s[t+1])
+						p = i.a.vn;
+					break;
+				case JGE:
+					t -= 2;
+					if (s[t] >= s[t+1])
+						p = i.a.vn;
 					break;
-				case 13:	// <=
+				case JGT:
+					t -= 2;
+					if (s[t] > s[t+1])
+						p = i.a.vn;
+					break;
+				case JLE:
+					t -= 2;
+					if (s[t] <= s[t+1])
+						p = i.a.vn;
+					break;
+				case JEV:				// 栈顶为偶数时跳转
 					t--;
-					s[t-1].change(s[t-1].vn <= s[t].vn ? 1 : 0);
+					if (s[t] % 2 == 0)
+						p = i.a.vn;
 					break;
-				case 14:	// print
-					if (s[t-1].isNum()) {
-						System.out.print(s[t-1].vn);
-						PL0.fa2.print(s[t-1].vn);
+				case STOS:				// 将栈顶的字符串存到相对当前过程的数据基地址为a的内存
+					t--;
+					a = base(i.l, s, b) + i.a.vn;
+					if (arena != null && (a < lo || a >= hi || tasks.size() > arena.marks[b])) {
+						synchronized (arena) {
+							ss[a] = ss[t];
+						}
 					} else {
-						System.out.print(s[t-1].vs);
-						PL0.fa2.print(s[t-1].vs);
+						ss[a] = ss[t];
 					}
-					t--;
 					break;
-				case 15:	// print "\n"
-					System.out.println();
-					PL0.fa2.println();
-					break;
-				case 16:	// scan num
-					s[t].change(0);
-					try {
-						s[t].change(Integer.parseInt(PL0.stdin.readLine()));
-					} catch (Exception e) {}
-					PL0.fa2.println(s[t].vs);
+				case LODS:				// 取相对当前过程的数据基地址为a的内存的字符串到栈顶
+					a = base(i.l,s,b)+i.a.vn;
+					if (arena != null && (a < lo || a >= hi || tasks.size() > arena.marks[b])) {
+						synchronized (arena) {
+							ss[t] = ss[a];
+						}
+					} else {
+						ss[t] = ss[a];
+					}
 					t++;
 					break;
-				case 17:	// print " "
-					System.out.print(" ");
-					PL0.fa2.print(" ");
+				case LDA:				// 栈顶为下标，取出以a为起点的数组中的元素
+					a = base(i.l,s,b)+i.a.vn+s[t-1];
+					if (arena != null && (a < lo || a >= hi || tasks.size() > arena.marks[b])) {
+						synchronized (arena) {
+							s[t-1] = s[a];
+						}
+					} else {
+						s[t-1] = s[a];
+					}
 					break;
-				case 18:	// str + str
-					t--;
-					s[t-1].change(s[t-1].vs + s[t].vs);
+				case STA:				// 栈顶的值存入以a为起点的数组，次栈顶为下标
+					t -= 2;
+					a = base(i.l, s, b) + i.a.vn + s[t];
+					if (arena != null && (a < lo || a >= hi || tasks.size() > arena.marks[b])) {
+						synchronized (arena) {
+							s[a] = s[t+1];
+						}
+					} else {
+						s[a] = s[t+1];
+					}
 					break;
-				case 19:	// str * num
-					t--;
-					String tmp = s[t-1].vs;
-					s[t-1].vs = "";
-					for (int _i = 0; _i < s[t].vn; _i++) {
-						s[t-1].change(s[t-1].vs + tmp);
+				case CHK:				// 检查栈顶的下标在[0, a)内，不弹出
+					if (s[t-1] < 0 || s[t-1] >= i.a.vn) {
+						abort("array index out of bounds");
+						break exec;
 					}
 					break;
-				case 20:	// scan str
-					s[t].change(0);
-					try {
-						s[t].change(PL0.stdin.readLine());
-					} catch (Exception e) {}
-					PL0.fa2.println(s[t].vs);
+				case LITS:			// 将a的字符串取到栈顶
+					ss[t] = i.a.vs;
 					t++;
 					break;
 				}
-				break;
-			case LOD:				// 取相对当前过程的数据基地址为a的内存的值到栈顶
-				s[t].change(s[base(i.l,s,b)+i.a.vn].vn);
-				t++;
-				break;
-			case STO:				// 栈顶的值存到相对当前过程的数据基地址为a的内存
-				t--;
-				s[base(i.l, s, b) + i.a.vn].change(s[t].vn);
-				break;
-			case CAL:				// 调用子过程
-				s[t].change(base(i.l, s, b)); 	// 将静态作用域基地址入栈
-				s[t+1].change(b);					// 将动态作用域基地址入栈
-				s[t+2].change(p);					// 将当前指令指针入栈
-				b = t;  					// 改变基地址指针值为新过程的基地址
-				p = i.a.vn;   					// 跳转
-				break;
-			case INT:			// 分配内存
-				t += i.a.vn;
-				break;
-			case JMP:				// 直接跳转
-				p = i.a.vn;
-				break;
-			case JPC:				// 条件跳转（当栈顶为0的时候跳转）
-				t--;
-				if (s[t].vn == 0)
-					p = i.a.vn;
-				break;
-			case STOS:				// 将栈顶的值存到相对当前过程的数据基地址为a的内存
-				t--;
-				s[base(i.l, s, b) + i.a.vn].change(s[t].vs);
-				break;
-			case LODS:				// 取相对当前过程的数据基地址为a的内存的字符串到栈顶
-				// System.out.println("Before: " + s[base(i.l,s,b)+i.a.vn].vs);
-				s[t].change(s[base(i.l,s,b)+i.a.vn].vs);
-				// System.out.println("LODS: " + s[t].vs);
-				t++;
-				break;
-			case LITS:			// 将a的字符串取到栈顶
-				s[t].change(i.a.vs);
-				// System.out.println("LITS: " + s[t].vs);
-				t++;
-				break;
+				if (p == 0) {
+					status = Status.HALTED;
+					break;
+				}
 			}
-		} while (p != 0);
+		} catch (ArrayIndexOutOfBoundsException e) {
+			// INT保证堆栈帧不超出配额，只有表达式的操作数用完了预留的空间时栈顶才会超出配额；
+			// 否则是解释器或生成的代码有错，不能当作程序超出配额
+			if (t - lo <= maxStack)
+				throw new Error("internal error at " + (p - 1) + ": " + e.getMessage(), e);
+			abort("stack quota exceeded");
+		}
+		executed += budget - n;
+		if (arena != null)
+			arena.executed.addAndGet(-n);			// 退回时间片中没有执行的部分
+		if (status == Status.RUNNING && arena != null && cancelled())
+			abort("cancelled");
+		else if (status == Status.RUNNING && (arena == null ? executed : arena.executed.get()) >= maxInstructions)
+			abort("instruction quota exceeded");
+		if (status == Status.ABORTED && tasks != null && !tasks.isEmpty())
+			cancel();
+		report(budget - n, status == Status.HALTED || status == Status.ABORTED ? 0 : t - lo);
+		this.p = p;
+		this.b = b;
+		this.t = t;
+		return status;
 	}
 	
+	/**
+	 * run()返回前把本次的资源使用量计入RuntimeStats
+	 * @param n 本次执行的指令数
+	 * @param depth 当前运行栈深度，程序结束时为0
+	 */
+	private void report(long n, int depth) {
+		RuntimeStats.executed.add(n);
+		RuntimeStats.stringBytes.add(stringBytes - reportedBytes);
+		reportedBytes = stringBytes;
+		RuntimeStats.stackDepth.add(depth - reportedDepth);
+		reportedDepth = depth;
+		RuntimeStats.peakStack.accumulate(peakStack);
+		if (live && (status == Status.HALTED || status == Status.ABORTED)) {
+			RuntimeStats.active.decrement();
+			live = false;
+		}
+	}
+
 	/**
 	 * 通过给定的层次差来获得该层的堆栈帧基地址
 	 * @param l 目标层次与当前层次的层次差
@@ -270,10 +1148,10 @@ public class Interpreter {
 	 * @param b 当前层堆栈帧基地址
 	 * @return 目标层次的堆栈帧基地址
 	 */
-	private int base(int l, Data[] s, int b) {
+	private int base(int l, int[] s, int b) {
 		int b1 = b;
 		while (l > 0) {
-			b1 = s[b1].vn;
+			b1 = s[b1];
 			l --;
 		}
 		return b1;
@@ -0,0 +1,294 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ *　　宏基准测试：对一组有代表性的程序（bench目录下的*.l24，同名的.in文件为输入）各用完整的编译流程
+ *　　（Program.compile）编译并运行若干次，记录编译时间、运行时间、执行的指令数、分配的字节数和堆内存峰值。
+ *　　结果可以存为基线文件；与基线比较时对每个程序的每项指标做Welch t检验，均值变化超过阈值且显著的
+ *　　列为退化（REGRESSION）或改进（improved），有退化时以退出码1结束。
+ *
+ *　　用法：java MacroBench [-dir 目录] [-reps n] [-warmup n] [-save 文件] [-compare 文件] [-alpha p] [-threshold 百分比]
+ *　　默认目录为bench，每个程序预热3次、测量10次，显著性水平0.01，阈值3%。
+ *　　分配的字节数只能按线程统计，因此编译时不用并行后端，全部分配都发生在调用线程中。
+ */
+public class MacroBench {
+	/**
+	 * 记录的指标
+	 */
+	static final String[] metrics = { "compile_ms", "run_ms", "instructions", "alloc_kb", "peak_heap_mb" };
+
+	public static void main(String[] args) throws IOException {
+		String dir = "bench", save = null, compare = null;
+		int reps = 10, warmup = 3;
+		double alpha = 0.01, threshold = 3;
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			switch (args[i]) {
+			case "-dir":
+				dir = args[i + 1];
+				break;
+			case "-reps":
+				reps = Integer.parseInt(args[i + 1]);
+				break;
+			case "-warmup":
+				warmup = Integer.parseInt(args[i + 1]);
+				break;
+			case "-save":
+				save = args[i + 1];
+				break;
+			case "-compare":
+				compare = args[i + 1];
+				break;
+			case "-alpha":
+				alpha = Double.parseDouble(args[i + 1]);
+				break;
+			case "-threshold":
+				threshold = Double.parseDouble(args[i + 1]);
+				break;
+			default:
+				System.out.println("Unknown option " + args[i]);
+				return;
+			}
+		}
+
+		File[] files = new File(dir).listFiles((d, name) -> name.endsWith(".l24"));
+		if (files == null || files.length == 0) {
+			System.out.println("No programs in " + dir);
+			return;
+		}
+		Arrays.sort(files);
+		Program.jobs = 1;			// 并行后端在线程池中优化，那里的分配统计不到
+
+		// 每个程序的每项指标的全部样本，键为“程序 指标”
+		LinkedHashMap<String, double[]> samples = new LinkedHashMap<String, double[]>();
+		System.out.printf("%-16s %18s %18s %12s %10s %10s%n", "program", "compile(ms)", "run(ms)",
+				"instructions", "alloc(KB)", "heap(MB)");
+		for (File f : files) {
+			String name = f.getName().substring(0, f.getName().length() - 4);
+			String source = new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8);
+			File in = new File(dir, name + ".in");
+			String input = in.exists() ? new String(Files.readAllBytes(in.toPath()), StandardCharsets.UTF_8) : "";
+
+			for (int k = 0; k < warmup; k++)
+				measure(source, input);
+			double[][] m = new double[metrics.length][reps];
+			for (int k = 0; k < reps; k++) {
+				double[] r = measure(source, input);
+				for (int j = 0; j < metrics.length; j++)
+					m[j][k] = r[j];
+			}
+			for (int j = 0; j < metrics.length; j++)
+				samples.put(name + " " + metrics[j], m[j]);
+			System.out.printf("%-16s %9.3f +-%7.3f %9.3f +-%7.3f %12.0f %10.0f %10.1f%n", name,
+					mean(m[0]), sd(m[0]), mean(m[1]), sd(m[1]), mean(m[2]), mean(m[3]), mean(m[4]));
+		}
+
+		if (save != null) {
+			try (PrintStream out = new PrintStream(save, "UTF-8")) {
+				out.println("# MacroBench baseline: program metric samples...");
+				for (Map.Entry<String, double[]> e : samples.entrySet()) {
+					out.print(e.getKey());
+					for (double v : e.getValue())
+						out.print(" " + v);
+					out.println();
+				}
+			}
+			System.out.println("baseline written to " + save);
+		}
+
+		if (compare != null) {
+			LinkedHashMap<String, double[]> base = load(compare);
+			if (base == null)
+				return;
+			System.out.println();
+			System.out.printf("%-16s %-13s %12s %12s %8s %9s%n", "program", "metric", "baseline", "current", "change", "p");
+			int regressions = 0;
+			for (Map.Entry<String, double[]> e : samples.entrySet()) {
+				double[] b = base.get(e.getKey());
+				if (b == null)
+					continue;
+				double[] c = e.getValue();
+				double m0 = mean(b), m1 = mean(c);
+				double change = m0 == 0 ? (m1 == 0 ? 0 : 100) : (m1 - m0) / m0 * 100;
+				double p = welch(b, c);
+				String verdict = "";
+				if (p < alpha && Math.abs(change) > threshold) {
+					verdict = change > 0 ? "REGRESSION" : "improved";
+					if (change > 0)
+						regressions ++;
+				}
+				String[] key = e.getKey().split(" ");
+				System.out.printf("%-16s %-13s %12.3f %12.3f %+7.1f%% %9.2g %s%n", key[0], key[1], m0, m1, change, p, verdict);
+			}
+			System.out.println(regressions == 0 ? "no significant regressions"
+					: regressions + " significant regression(s) (p < " + alpha + ", change > " + threshold + "%)");
+			if (regressions > 0)
+				System.exit(1);
+		}
+	}
+
+	/**
+	 * 编译并运行一次
+	 * @return 各项指标，顺序同metrics
+	 */
+	static double[] measure(String source, String input) {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		com.sun.management.ThreadMXBean alloc = threads instanceof com.sun.management.ThreadMXBean
+				? (com.sun.management.ThreadMXBean) threads : null;
+		long tid = Thread.currentThread().getId();
+		// 先回收上一次运行留下的对象，峰值只反映这一次的编译和运行
+		System.gc();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP)
+				pool.resetPeakUsage();
+		}
+		long a0 = alloc == null ? 0 : alloc.getThreadAllocatedBytes(tid);
+
+		long t0 = System.nanoTime();
+		Program program = Program.compile(source);
+		long t1 = System.nanoTime();
+		Interpreter interp = program.instance(new BufferedReader(new StringReader(input)), Interpreter.DISCARD);
+		interp.interpret();
+		long t2 = System.nanoTime();
+		if (interp.status() != Status.HALTED)
+			throw new Error("program did not halt: " + interp.error);
+
+		long a1 = alloc == null ? 0 : alloc.getThreadAllocatedBytes(tid);
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP)
+				peak += pool.getPeakUsage().getUsed();
+		}
+		return new double[] { (t1 - t0) / 1e6, (t2 - t1) / 1e6, interp.executed, (a1 - a0) / 1024.0, peak / 1048576.0 };
+	}
+
+	/**
+	 * 读入基线文件
+	 * @return 各项指标的样本，文件不能读取时返回null
+	 */
+	static LinkedHashMap<String, double[]> load(String fname) {
+		LinkedHashMap<String, double[]> base = new LinkedHashMap<String, double[]>();
+		try (BufferedReader in = new BufferedReader(new FileReader(fname))) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.startsWith("#") || line.trim().isEmpty())
+					continue;
+				String[] f = line.trim().split("\\s+");
+				double[] v = new double[f.length - 2];
+				for (int k = 0; k < v.length; k++)
+					v[k] = Double.parseDouble(f[k + 2]);
+				base.put(f[0] + " " + f[1], v);
+			}
+		} catch (IOException | RuntimeException e) {
+			System.out.println("Can't read baseline " + fname);
+			return null;
+		}
+		return base;
+	}
+
+	static double mean(double[] v) {
+		double s = 0;
+		for (double x : v)
+			s += x;
+		return s / v.length;
+	}
+
+	static double sd(double[] v) {
+		if (v.length < 2)
+			return 0;
+		double m = mean(v), s = 0;
+		for (double x : v)
+			s += (x - m) * (x - m);
+		return Math.sqrt(s / (v.length - 1));
+	}
+
+	/**
+	 * Welch t检验：两组样本均值相等的双侧p值。两组都没有方差（如指令数）时，均值不同则p为0
+	 */
+	static double welch(double[] a, double[] b) {
+		double va = sd(a) * sd(a) / a.length, vb = sd(b) * sd(b) / b.length;
+		double diff = mean(b) - mean(a);
+		if (va + vb == 0)
+			return diff == 0 ? 1 : 0;
+		double t = diff / Math.sqrt(va + vb);
+		double df = (va + vb) * (va + vb) / (va * va / Math.max(1, a.length - 1) + vb * vb / Math.max(1, b.length - 1));
+		return betai(df / 2, 0.5, df / (df + t * t));
+	}
+
+	/**
+	 * 正则化不完全贝塔函数I_x(a, b)，t分布的双侧p值为I_{df/(df+t²)}(df/2, 1/2)
+	 */
+	static double betai(double a, double b, double x) {
+		if (x <= 0)
+			return 0;
+		if (x >= 1)
+			return 1;
+		double bt = Math.exp(lgamma(a + b) - lgamma(a) - lgamma(b) + a * Math.log(x) + b * Math.log(1 - x));
+		if (x < (a + 1) / (a + b + 2))
+			return bt * betacf(a, b, x) / a;
+		return 1 - bt * betacf(b, a, 1 - x) / b;
+	}
+
+	/**
+	 * 不完全贝塔函数的连分式（修正的Lentz方法）
+	 */
+	private static double betacf(double a, double b, double x) {
+		final double tiny = 1e-300;
+		double qab = a + b, qap = a + 1, qam = a - 1;
+		double c = 1, d = 1 - qab * x / qap;
+		if (Math.abs(d) < tiny)
+			d = tiny;
+		d = 1 / d;
+		double h = d;
+		for (int m = 1; m <= 200; m++) {
+			int m2 = 2 * m;
+			double aa = m * (b - m) * x / ((qam + m2) * (a + m2));
+			d = 1 + aa * d;
+			if (Math.abs(d) < tiny)
+				d = tiny;
+			c = 1 + aa / c;
+			if (Math.abs(c) < tiny)
+				c = tiny;
+			d = 1 / d;
+			h *= d * c;
+			aa = -(a + m) * (qab + m) * x / ((a + m2) * (qap + m2));
+			d = 1 + aa * d;
+			if (Math.abs(d) < tiny)
+				d = tiny;
+			c = 1 + aa / c;
+			if (Math.abs(c) < tiny)
+				c = tiny;
+			d = 1 / d;
+			double del = d * c;
+			h *= del;
+			if (Math.abs(del - 1) < 1e-12)
+				break;
+		}
+		return h;
+	}
+
+	/**
+	 * ln Γ(x)，Lanczos近似
+	 */
+	private static double lgamma(double x) {
+		double[] g = { 76.18009172947146, -86.50532032941677, 24.01409824083091,
+				-1.231739572450155, 0.1208650973866179e-2, -0.5395239384953e-5 };
+		double y = x, tmp = x + 5.5;
+		tmp -= (x + 0.5) * Math.log(tmp);
+		double ser = 1.000000000190015;
+		for (double c : g)
+			ser += c / ++y;
+		return -tmp + Math.log(2.5066282746310005 * ser / x);
+	}
+}
@@ -0,0 +1,315 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+
+/**
+ *　　模块：只含说明的源程序文件，形如 module { var ...; procedure ...; }，由主程序用 import "文件名"; 导入。
+ *　　模块单独编译成可重定位的代码单元，其中的过程相当于主程序的过程，只能访问模块自己的变量。
+ *　　导入时代码接在主程序当前代码之后，跳转和调用地址加上代码的起点，访问模块变量的指令加上变量在
+ *　　主程序堆栈帧中的起点，模块顶层的名字登入主程序的名字表。
+ *
+ *　　编译结果缓存在“文件名.unit”中，源程序和优化选项都没有变化时直接读入，不再编译。
+ *　　缓存只在命令行编译（PL0.unitcache）时写入，Program.compile只读不写。
+ */
+class ModuleUnit {
+	private static final int MAGIC = 0x4c32344d;
+
+	/**
+	 * 源程序和优化选项的散列值
+	 */
+	long hash;
+
+	/**
+	 * 模块的全部代码，地址从0开始
+	 */
+	Instruction[] code;
+
+	/**
+	 * 指令的参数是否为模块变量的地址
+	 */
+	boolean[] data;
+
+	/**
+	 * 模块顶层的堆栈帧大小，模块变量占用[3, dx)
+	 */
+	int dx;
+
+	/**
+	 * 导出的名字：模块顶层的常量、变量和过程。过程的adr为入口地址，size为堆栈帧大小；
+	 * 数组的size为元素个数；map的val为键的类型
+	 */
+	String[] names;
+	Objekt[] kinds;
+	int[] adr, size, val;
+
+	/**
+	 * 全部过程（包括内层过程）的名字、层次和代码区间，内层过程在前
+	 */
+	String[] procs;
+	int[] lev, from, to;
+
+	/**
+	 * 编译过程中收集的过程
+	 */
+	private ArrayList<Object[]> ranges = new ArrayList<Object[]>();
+
+	/**
+	 * 读入一个模块，缓存过时或不存在时重新编译，PL0.unitcache打开时写入缓存
+	 * @param fname 模块的源程序文件名
+	 * @return 模块，源程序不能读取或有错误时返回null
+	 */
+	static ModuleUnit load(String fname) {
+		String source;
+		try {
+			source = new String(Files.readAllBytes(Paths.get(fname)), StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			PL0.console.println("Can't open module " + fname);
+			PL0.fa1.println("Can't open module " + fname);
+			return null;
+		}
+		long h = 0xcbf29ce484222325L;
+		for (int k = 0; k < source.length(); k++)
+			h = (h ^ source.charAt(k)) * 0x100000001b3L;
+		h = (h ^ (PL0.optswitch ? PL0.inlmax : -1)) * 0x100000001b3L;
+
+		String cache = fname + ".unit";
+		try (DataInputStream in = new DataInputStream(new java.io.BufferedInputStream(new FileInputStream(cache)))) {
+			if (in.readInt() == MAGIC && in.readLong() == h)
+				return read(in, h);
+		} catch (IOException | IllegalArgumentException e) {
+			// 没有可用的缓存，重新编译
+		}
+
+		ModuleUnit u = compile(fname, source);
+		if (u == null)
+			return null;
+		u.hash = h;
+		if (!PL0.unitcache)
+			return u;
+		try (DataOutputStream out = new DataOutputStream(new java.io.BufferedOutputStream(new FileOutputStream(cache)))) {
+			u.write(out);
+		} catch (IOException e) {
+			PL0.console.println("Can't write module cache " + cache);
+		}
+		return u;
+	}
+
+	/**
+	 * 编译模块。编译器的各部件是PL0的静态变量，编译期间替换为模块自己的，结束后恢复；
+	 * 模块的源程序清单只在有错误时输出
+	 * @return 模块，有错误时返回null
+	 */
+	private static ModuleUnit compile(String fname, String source) {
+		Scanner lex = PL0.lex;
+		Interpreter interp = PL0.interp;
+		Table table = PL0.table;
+		Parser parser = PL0.parser;
+		PrintStream console = PL0.console, fa = PL0.fa, fa1 = PL0.fa1, fas = PL0.fas;
+		boolean list = PL0.listswitch, tab = PL0.tableswitch;
+		int err = Err.err;
+
+		ByteArrayOutputStream text = new ByteArrayOutputStream();
+		PrintStream nul = new PrintStream(OutputStream.nullOutputStream());
+		PL0.fa1 = new PrintStream(text, true, StandardCharsets.UTF_8);
+		PL0.console = PL0.fa = PL0.fas = nul;
+		PL0.listswitch = PL0.tableswitch = false;
+		try {
+			new PL0(new BufferedReader(new StringReader(source), 4096), new CompileCache());
+			ModuleUnit u = new ModuleUnit();
+			PL0.parser.startModule(u);
+			if (Err.err > 0) {
+				String msg = "Errors in module " + fname + "\n" + text.toString(StandardCharsets.UTF_8);
+				console.print(msg);
+				fa1.print(msg);
+				return null;
+			}
+			u.link(PL0.interp);
+			return u;
+		} finally {
+			PL0.lex = lex;
+			PL0.interp = interp;
+			PL0.table = table;
+			PL0.parser = parser;
+			PL0.console = console;
+			PL0.fa = fa;
+			PL0.fa1 = fa1;
+			PL0.fas = fas;
+			PL0.listswitch = list;
+			PL0.tableswitch = tab;
+			Err.err = err;
+		}
+	}
+
+	/**
+	 * 登记一个生成完（并优化完）代码的过程，层次为0的是模块顶层
+	 * @param name 过程名字
+	 * @param lev 过程语句部分所在的层次
+	 * @param from 过程入口地址
+	 * @param to 过程代码的终点
+	 */
+	void procedure(String name, int lev, int from, int to) {
+		ranges.add(new Object[] { name, lev, from, to });
+	}
+
+	/**
+	 * 记下模块顶层的名字，在模块分析完、名字表恢复之前调用
+	 * @param table 名字表
+	 * @param tx0 模块顶层名字的前一项
+	 * @param dx 模块顶层的堆栈帧大小
+	 */
+	void exports(Table table, int tx0, int dx) {
+		this.dx = dx;
+		int n = table.tx - tx0;
+		names = new String[n];
+		kinds = new Objekt[n];
+		adr = new int[n];
+		size = new int[n];
+		val = new int[n];
+		for (int k = 0; k < n; k++) {
+			Table.Item it = table.get(tx0 + 1 + k);
+			names[k] = it.name;
+			kinds[k] = it.kind;
+			adr[k] = it.adr;
+			size[k] = it.size;
+			val[k] = it.val;
+		}
+	}
+
+	/**
+	 * 取出模块的代码，标出访问模块变量的指令：所在过程的层次等于层次差的取存指令
+	 * @param interp 编译模块的代码生成器
+	 */
+	private void link(Interpreter interp) {
+		code = java.util.Arrays.copyOf(interp.code, interp.cx);
+		data = new boolean[interp.cx];
+		ArrayList<Object[]> p = new ArrayList<Object[]>();
+		for (Object[] r : ranges) {
+			int l = (Integer) r[1], a = (Integer) r[2], b = (Integer) r[3];
+			for (int k = a; k < b; k++)
+				data[k] = isAccess(code[k].f) && code[k].l == l;
+			if (l > 0)
+				p.add(r);
+		}
+		procs = new String[p.size()];
+		lev = new int[p.size()];
+		from = new int[p.size()];
+		to = new int[p.size()];
+		for (int k = 0; k < procs.length; k++) {
+			procs[k] = (String) p.get(k)[0];
+			lev[k] = (Integer) p.get(k)[1];
+			from[k] = (Integer) p.get(k)[2];
+			to[k] = (Integer) p.get(k)[3];
+		}
+		ranges = null;
+	}
+
+	/**
+	 * 按层次差和地址访问堆栈帧的指令
+	 */
+	static boolean isAccess(Fct f) {
+		switch (f) {
+		case LOD: case STO: case LODS: case STOS: case LDA: case STA:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * @return 模块的过程读取的模块变量地址（模块堆栈帧中的地址）
+	 */
+	ArrayList<Integer> reads() {
+		ArrayList<Integer> r = new ArrayList<Integer>();
+		for (int k = 0; k < code.length; k++) {
+			Fct f = code[k].f;
+			if (data[k] && (f == Fct.LOD || f == Fct.LODS || f == Fct.LDA) && !r.contains(code[k].a.vn))
+				r.add(code[k].a.vn);
+		}
+		return r;
+	}
+
+	/**
+	 * 导出过程的散列值，模块源程序有任何变化时都会改变。内联了该过程的主程序过程据此判断增量编译缓存是否过时
+	 * @param k 导出名字的序号
+	 */
+	long procedureHash(int k) {
+		long h = (hash ^ names[k].hashCode()) * 0x100000001b3L;
+		return h == 0 ? 1 : h;
+	}
+
+	private void write(DataOutputStream out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeLong(hash);
+		out.writeInt(dx);
+		out.writeInt(code.length);
+		for (int k = 0; k < code.length; k++) {
+			CompileCache.writeInstruction(out, code[k]);
+			out.writeBoolean(data[k]);
+		}
+		out.writeInt(names.length);
+		for (int k = 0; k < names.length; k++) {
+			out.writeUTF(names[k]);
+			out.writeUTF(kinds[k].name());
+			out.writeInt(adr[k]);
+			out.writeInt(size[k]);
+			out.writeInt(val[k]);
+		}
+		out.writeInt(procs.length);
+		for (int k = 0; k < procs.length; k++) {
+			out.writeUTF(procs[k]);
+			out.writeInt(lev[k]);
+			out.writeInt(from[k]);
+			out.writeInt(to[k]);
+		}
+	}
+
+	private static ModuleUnit read(DataInputStream in, long hash) throws IOException {
+		ModuleUnit u = new ModuleUnit();
+		u.hash = hash;
+		u.dx = in.readInt();
+		int n = in.readInt();
+		u.code = new Instruction[n];
+		u.data = new boolean[n];
+		for (int k = 0; k < n; k++) {
+			u.code[k] = CompileCache.readInstruction(in);
+			u.data[k] = in.readBoolean();
+		}
+		n = in.readInt();
+		u.names = new String[n];
+		u.kinds = new Objekt[n];
+		u.adr = new int[n];
+		u.size = new int[n];
+		u.val = new int[n];
+		for (int k = 0; k < n; k++) {
+			u.names[k] = in.readUTF();
+			u.kinds[k] = Objekt.valueOf(in.readUTF());
+			u.adr[k] = in.readInt();
+			u.size[k] = in.readInt();
+			u.val[k] = in.readInt();
+		}
+		n = in.readInt();
+		u.procs = new String[n];
+		u.lev = new int[n];
+		u.from = new int[n];
+		u.to = new int[n];
+		for (int k = 0; k < n; k++) {
+			u.procs[k] = in.readUTF();
+			u.lev[k] = in.readInt();
+			u.from[k] = in.readInt();
+			u.to[k] = in.readInt();
+		}
+		u.ranges = null;
+		return u;
+	}
+}
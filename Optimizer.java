@@ -0,0 +1,1081 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ *　　代码优化器。Parser每生成完一个过程的代码就调用一次optimize()，对该过程[cx0, cx)区间
+ *　　内的代码做变换。由于当前过程的代码总是位于code数组的末尾，区间内的指令可以任意增删，
+ *　　只需要重新计算区间内跳转指令的目标地址。
+ *
+ *　　使用并行后端时，每个过程由一个独立的Optimizer在线程池中优化，结果存入Backend.Unit，
+ *　　被调过程的代码和数组大小都从Unit中取得，不再查找名字表。
+ */
+public class Optimizer {
+	/**
+	 * 对目标代码生成器的引用
+	 */
+	private Interpreter interp;
+
+	/**
+	 * 对符号表的引用，用来查找被调用的过程
+	 */
+	private Table table;
+
+	/**
+	 * 并行后端中正在优化的过程，为null时每个过程生成完立即优化
+	 */
+	private Backend.Unit unit;
+
+	/**
+	 * 正在优化的过程代码，第0条总是该过程的INT指令
+	 */
+	private ArrayList<Instruction> body;
+
+	/**
+	 * 过程内的跳转指令及其目标指令。优化期间用指令对象代替地址，增删指令后不必逐一修改跳转地址
+	 */
+	private IdentityHashMap<Instruction, Instruction> dest;
+
+	/**
+	 * 当前过程的堆栈帧大小，优化时申请的临时变量会使它增大
+	 */
+	private int dx;
+
+	/**
+	 * 正在优化的过程语句部分所在的层次
+	 */
+	private int lev;
+
+	/**
+	 * 内层过程读取过的外层变量，每项为 (层次 << 32) | 地址。一个过程的局部变量只可能被它自己和
+	 * 它的内层过程读取，而内层过程总是先于该过程的语句部分生成代码
+	 */
+	private HashSet<Long> outer = new HashSet<Long>();
+
+	/**
+	 * 已生成代码的过程名字
+	 */
+	private ArrayList<String> names = new ArrayList<String>();
+
+	/**
+	 * 已生成代码的过程入口地址，与names一一对应
+	 */
+	private ArrayList<Integer> entries = new ArrayList<Integer>();
+
+	/**
+	 * 被内联过的过程：名字、代码散列值和入口地址，增量编译据此判断复用的代码是否过时
+	 */
+	private ArrayList<String> inlined = new ArrayList<String>();
+	private ArrayList<Long> inlinedHash = new ArrayList<Long>();
+	private ArrayList<Integer> inlinedAt = new ArrayList<Integer>();
+
+	/**
+	 * 构造优化器
+	 * @param i 编译器的目标代码生成器
+	 * @param t 编译器的符号表
+	 */
+	public Optimizer(Interpreter i, Table t) {
+		interp = i;
+		table = t;
+	}
+
+	/**
+	 * 为并行后端构造只优化一个过程的优化器
+	 * @param i 编译器的目标代码生成器，其中的代码在优化期间不会改变
+	 * @param u 要优化的过程，它的内层过程和可能内联的过程都已经优化完毕
+	 */
+	Optimizer(Interpreter i, Backend.Unit u) {
+		interp = i;
+		unit = u;
+		for (Backend.Unit c : u.children)
+			outer.addAll(c.reads);
+	}
+
+	/**
+	 * 优化一个过程的代码
+	 * @param name 过程名字
+	 * @param lev 过程语句部分所在的层次
+	 * @param cx0 过程入口（INT指令）的地址，从cx0到interp.cx为该过程的全部代码
+	 * @param dx 过程当前的堆栈帧大小
+	 * @return 优化后过程的堆栈帧大小
+	 */
+	public int optimize(String name, int lev, int cx0, int dx) {
+		names.add(name);
+		entries.add(cx0);
+		if (!PL0.optswitch || Err.err > 0)
+			return dx;
+
+		this.dx = dx;
+		this.lev = lev;
+		load(cx0, interp.cx);
+		inlineCalls(cx0);
+		removeDeadStores(lev);
+		hoistLoopInvariants();
+		eliminateTailCalls();
+		store(cx0);
+		return this.dx;
+	}
+
+	/**
+	 * 并行后端优化一个过程：代码、堆栈帧大小、对外层变量的读取和内联报告存入unit，
+	 * 过程内的跳转地址相对于过程入口，调用地址仍是原来代码中的地址，由Backend链接时改写
+	 */
+	void optimizeUnit() {
+		dx = unit.dx;
+		lev = unit.lev;
+		load(unit.from, unit.to);
+		inlineCalls(unit.from);
+		removeDeadStores(lev);
+		hoistLoopInvariants();
+		eliminateTailCalls();
+
+		IdentityHashMap<Instruction, Integer> pos = new IdentityHashMap<Instruction, Integer>();
+		for (int k = 0; k < body.size(); k++)
+			pos.put(body.get(k), k);
+		for (Map.Entry<Instruction, Instruction> e : dest.entrySet())
+			e.getKey().a.vn = pos.get(e.getValue());
+		body.get(0).a.vn = dx;
+		unit.code = body.toArray(new Instruction[body.size()]);
+		unit.size = dx;
+		unit.reads = outer;
+	}
+
+	/**
+	 * 增量编译复用了一段代码，登记其中的过程并恢复它对外层变量的读取
+	 * @param reads 对外层变量的读取
+	 * @param procs 代码中的过程名字
+	 * @param at 这些过程的入口地址
+	 */
+	void reuse(long[] reads, String[] procs, int[] at) {
+		for (long v : reads)
+			outer.add(v);
+		for (int k = 0; k < procs.length; k++) {
+			names.add(procs[k]);
+			entries.add(at[k]);
+		}
+	}
+
+	/**
+	 * @return 已生成代码的过程个数，names的第k项之后的过程都是在此之后生成的
+	 */
+	int procedures() {
+		return names.size();
+	}
+
+	String procedureName(int k) {
+		return names.get(k);
+	}
+
+	int procedureEntry(int k) {
+		return entries.get(k);
+	}
+
+	/**
+	 * @return 内联过的过程个数
+	 */
+	int inlines() {
+		return inlined.size();
+	}
+
+	String inlinedName(int k) {
+		return inlined.get(k);
+	}
+
+	long inlinedHash(int k) {
+		return inlinedHash.get(k);
+	}
+
+	int inlinedEntry(int k) {
+		return inlinedAt.get(k);
+	}
+
+	/**
+	 * 开始记录一个过程的代码对外层变量的读取：此后的读取记入新的集合
+	 * @return 原来的集合，交给endReads()
+	 */
+	HashSet<Long> beginReads() {
+		HashSet<Long> saved = outer;
+		outer = new HashSet<Long>();
+		return saved;
+	}
+
+	/**
+	 * 结束记录，把过程（连同它的内层过程）对外层变量的读取并入原来的集合
+	 * @param saved beginReads()返回的集合
+	 * @return 这个过程的代码读取的外层变量，每项为 (层次 << 32) | 地址
+	 */
+	HashSet<Long> endReads(HashSet<Long> saved) {
+		HashSet<Long> reads = outer;
+		saved.addAll(reads);
+		outer = saved;
+		return reads;
+	}
+
+	/**
+	 * 整个程序的代码生成完毕后，在控制流图上删除从程序入口不可到达的基本块（包括从未被调用的过程）
+	 * 以及跳到下一条指令的JMP，然后紧缩代码并重新计算跳转和调用地址
+	 */
+	public void removeUnreachable() {
+		if (!PL0.optswitch || Err.err > 0)
+			return;
+
+		int cx = interp.cx;
+		Instruction[] code = interp.code;
+		FlowGraph g = new FlowGraph(code, 0, cx);
+		g.markReachable(0);
+
+		boolean[] keep = new boolean[cx];
+		for (Block b : g.blocks) {
+			for (int k = b.start; k < b.end; k++)
+				keep[k] = b.reachable;
+		}
+		int next = cx;
+		for (int k = cx - 1; k >= 0; k--) {
+			if (!keep[k])
+				continue;
+			if (code[k].f == Fct.JMP && code[k].a.vn == next)
+				keep[k] = false;
+			else
+				next = k;
+		}
+
+		// 被删除的指令映射到其后第一条保留的指令
+		int[] adr = new int[cx + 1];
+		int n = 0;
+		for (int k = 0; k < cx; k++) {
+			adr[k] = n;
+			if (keep[k])
+				n++;
+		}
+		adr[cx] = n;
+		if (n == cx)
+			return;
+
+		StringBuilder report = new StringBuilder();
+		for (int k = 0; k < names.size(); k++) {
+			int e = entries.get(k);
+			if (e < cx && !g.block(e).reachable)
+				report.append("    procedure " + names.get(k) + "\n");
+		}
+		report.append("    " + (cx - n) + " instructions\n");
+
+		n = 0;
+		for (int k = 0; k < cx; k++) {
+			if (!keep[k])
+				continue;
+			Instruction in = code[k];
+			if (isJump(in.f) || isCall(in.f))
+				in.a.vn = adr[in.a.vn];
+			code[n++] = in;
+		}
+		for (int k = n; k < cx; k++)
+			code[k] = null;
+		interp.cx = n;
+
+		if (PL0.listswitch) {
+			System.out.print("REMOVED:\n" + report);
+			PL0.fa.print("REMOVED:\n" + report);
+			interp.listcode(0);
+		}
+	}
+
+	/**
+	 * 把[cx0, end)区间内的代码取出，并把过程内的跳转地址换成目标指令
+	 * @param cx0 过程入口地址
+	 * @param end 过程代码的终点
+	 */
+	private void load(int cx0, int end) {
+		body = new ArrayList<Instruction>();
+		dest = new IdentityHashMap<Instruction, Instruction>();
+		for (int k = cx0; k < end; k++)
+			body.add(interp.code[k]);
+		for (Instruction in : body) {
+			if (isJump(in.f) && in.a.vn >= cx0 && in.a.vn < end)
+				dest.put(in, interp.code[in.a.vn]);
+		}
+	}
+
+	/**
+	 * 把优化后的代码写回code数组，并回填过程内的跳转地址
+	 * @param cx0 过程入口地址
+	 */
+	private void store(int cx0) {
+		if (cx0 + body.size() > PL0.cxmax)
+			throw new Error("Program too long");
+		interp.reserve(cx0 + body.size());
+
+		IdentityHashMap<Instruction, Integer> pos = new IdentityHashMap<Instruction, Integer>();
+		for (int k = 0; k < body.size(); k++)
+			pos.put(body.get(k), cx0 + k);
+		for (Map.Entry<Instruction, Instruction> e : dest.entrySet())
+			e.getKey().a.vn = pos.get(e.getValue());
+
+		for (int k = cx0 + body.size(); k < interp.cx; k++)
+			interp.code[k] = null;
+		for (int k = 0; k < body.size(); k++)
+			interp.code[cx0 + k] = body.get(k);
+		interp.cx = cx0 + body.size();
+		body.get(0).a.vn = dx;					// 临时变量也在堆栈帧中
+	}
+
+	/**
+	 * 过程内联。被调用的过程若足够小（不超过PL0.inlmax条指令）且不递归、不调用自己的内层过程，
+	 * 就把它的代码复制到调用处代替CAL，省去建立和撤销堆栈帧的开销。被内联过程的局部变量
+	 * 映射到调用者堆栈帧末尾新增的一段空间，各调用处不会同时活跃，因此共用这段空间。
+	 * @param cx0 当前过程入口地址
+	 */
+	private void inlineCalls(int cx0) {
+		int base = dx, extra = 0;
+		StringBuilder report = new StringBuilder();
+
+		for (int k = 0; k < body.size(); k++) {
+			Instruction call = body.get(k);
+			if (call.f != Fct.CAL)
+				continue;
+			int entry = call.a.vn;
+			// 被调过程的代码，其中的跳转地址与from同一基准；尚未生成完代码的过程（自身及外层过程）不能内联
+			Instruction[] code;
+			int from;
+			String name;
+			int size;
+			long hash;
+			if (unit == null) {
+				Table.Item item = table.procedure(entry);
+				if (item == null || entry == cx0 || interp.code[entry].f != Fct.INT)
+					continue;
+				code = interp.code;
+				from = entry;
+				name = item.name;
+				size = item.size;
+				hash = item.hash;
+			} else {
+				Backend.Unit u = unit.callee(entry);
+				if (u == null)
+					continue;
+				code = u.code;
+				from = 0;
+				name = u.name;
+				size = u.size;
+				hash = 0;
+			}
+			int end = from;
+			while (code[end].f != Fct.OPR || code[end].a.vn != 0)
+				end++;
+			if (end - from - 1 > PL0.inlmax || !inlinable(code, from, end, entry))
+				continue;
+
+			// 复制过程体（去掉INT和OPR 0），跳到OPR 0的跳转改为跳到调用处的下一条指令
+			ArrayList<Instruction> copies = new ArrayList<Instruction>();
+			for (int j = from + 1; j < end; j++)
+				copies.add(remap(code[j], call.l, base));
+			Instruction next = body.get(k + 1);
+			for (int j = from + 1; j < end; j++) {
+				Instruction in = code[j];
+				if (isJump(in.f))
+					dest.put(copies.get(j - from - 1), in.a.vn == end ? next : copies.get(in.a.vn - from - 1));
+			}
+			replace(k, k + 1, copies);
+			k += copies.size() - 1;
+
+			extra = Math.max(extra, size - 3);
+			inlined.add(name);
+			inlinedHash.add(hash);
+			inlinedAt.add(entry);
+			report.append("    inline " + name + " size=" + copies.size() + "\n");
+		}
+		dx += extra;
+
+		if (unit != null) {
+			unit.report = report.toString();
+		} else if (PL0.listswitch && report.length() > 0) {
+			System.out.print("INLINE:\n" + report);
+			PL0.fa.print("INLINE:\n" + report);
+		}
+	}
+
+	/**
+	 * 判断code[from, end]区间内、入口地址为entry的过程能否内联：不能调用自身，也不能调用自己的内层过程，
+	 * 因为内层过程要通过静态链访问被调过程的堆栈帧，而内联后这个堆栈帧不再存在。
+	 * 含有spawn或join的过程也不能内联，过程返回时要等待它启动的任务结束；含有尾调用的过程
+	 * 也不能内联，TCL会重用调用者的堆栈帧
+	 */
+	private static boolean inlinable(Instruction[] code, int from, int end, int entry) {
+		for (int j = from + 1; j < end; j++) {
+			Instruction in = code[j];
+			if (in.f == Fct.CAL && (in.l == 0 || in.a.vn == entry))
+				return false;
+			if (in.f == Fct.SPN || in.f == Fct.TCL || in.f == Fct.OPR && in.a.vn == 24)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * 把被内联过程的一条指令换成调用者中的等价指令。被调过程所在层比调用者深
+	 * 1 - call.l 层，因此访问外层的层次差要加上 call.l - 1，局部变量则搬到调用者堆栈帧的base之后
+	 * @param x 被内联过程的指令
+	 * @param l CAL指令的层次差
+	 * @param base 被内联过程局部变量在调用者堆栈帧中的起点
+	 */
+	private static Instruction remap(Instruction x, int l, int base) {
+		Instruction in = copy(x);
+		switch (in.f) {
+		case LOD: case STO: case LODS: case STOS: case LDA: case STA:
+			if (in.l == 0)
+				in.a.vn = in.a.vn - 3 + base;
+			else
+				in.l += l - 1;
+			break;
+		case CAL:
+			in.l += l - 1;
+			break;
+		default:
+			break;
+		}
+		return in;
+	}
+
+	/**
+	 * 尾调用。CAL之后（经过若干JMP）就是过程返回时，当前堆栈帧已经没有用处，把CAL换成TCL，
+	 * 被调过程重用这个堆栈帧，尾递归因此只占用常数的运行栈。本过程声明了map时，返回前释放map的
+	 * 代码复制到TCL之前。被调过程不能是本过程的内层过程（层次差为0），它要通过静态链访问这个
+	 * 堆栈帧；含有spawn的过程也不做，返回前要等待它启动的任务结束
+	 */
+	private void eliminateTailCalls() {
+		for (Instruction in : body) {
+			if (in.f == Fct.SPN)
+				return;
+		}
+		for (int k = 0; k + 1 < body.size(); k++) {
+			Instruction call = body.get(k);
+			if (call.f != Fct.CAL || call.l == 0)
+				continue;
+			int n = k + 1;
+			for (int hops = 0; body.get(n).f == Fct.JMP && dest.containsKey(body.get(n)) && hops < body.size(); hops++)
+				n = body.indexOf(dest.get(body.get(n)));
+			ArrayList<Instruction> list = new ArrayList<Instruction>();
+			while (n + 1 < body.size() && body.get(n).f == Fct.LOD && body.get(n).l == 0
+					&& body.get(n + 1).f == Fct.OPR && body.get(n + 1).a.vn == 33) {
+				list.add(copy(body.get(n)));
+				list.add(copy(body.get(n + 1)));
+				n += 2;
+			}
+			if (!FlowGraph.isReturn(body.get(n)))
+				continue;
+			Instruction tail = copy(call);
+			tail.f = Fct.TCL;
+			list.add(tail);
+			replace(k, k + 1, list);
+			k += list.size() - 1;
+		}
+	}
+
+	/**
+	 * 死存储消除。本过程的局部变量若从未被本过程或内层过程读取，对它的赋值就可以删除；
+	 * 被赋的值由纯运算算出时连同计算它的代码一起删除，含有scan等副作用时保留。
+	 * @param lev 过程语句部分所在的层次
+	 */
+	private void removeDeadStores(int lev) {
+		HashSet<Integer> read = new HashSet<Integer>();
+		for (Instruction in : body) {
+			if ((in.f == Fct.LOD || in.f == Fct.LODS) && in.l == 0)
+				read.add(in.a.vn);
+			if (in.f == Fct.LDA && in.l == 0) {
+				for (int a = in.a.vn; a < dx; a++)		// 下标未知，数组起点之后的单元都可能被读取
+					read.add(a);
+			}
+		}
+
+		for (int k = body.size() - 1; k > 0; k--) {
+			Instruction in = body.get(k);
+			if (in.f != Fct.STO && in.f != Fct.STOS || in.l != 0)
+				continue;
+			if (read.contains(in.a.vn) || outer.contains(frame(lev, in.a.vn)))
+				continue;
+			int s = valueStart(k);
+			if (s > 0 && pure(s, k)) {
+				replace(s, k + 1, new ArrayList<Instruction>());
+				k = s;
+			}
+		}
+
+		// 本层变量的外部读取已经用完，再记下本过程对外层变量的读取
+		ArrayList<Long> done = new ArrayList<Long>();
+		for (Long v : outer) {
+			if (v >> 32 == lev)
+				done.add(v);
+		}
+		outer.removeAll(done);
+		for (Instruction in : body) {
+			if ((in.f == Fct.LOD || in.f == Fct.LODS) && in.l > 0)
+				outer.add(frame(lev - in.l, in.a.vn));
+			if (in.f == Fct.LDA && in.l > 0) {
+				for (int a = in.a.vn; a < in.a.vn + arraySize(lev - in.l, in.a.vn); a++)
+					outer.add(frame(lev - in.l, a));
+			}
+		}
+	}
+
+	/**
+	 * 向前找出计算位置k处指令所用值的代码起点
+	 * @return 起点位置，找不到时返回-1
+	 */
+	private int valueStart(int k) {
+		int need = 1;
+		for (int j = k - 1; j > 0; j--) {
+			Instruction in = body.get(j);
+			need = need - pushes(in) + pops(in);
+			if (need == 0)
+				return j;
+			if (isJump(in.f) || isCall(in.f) || in.f == Fct.INT)
+				return -1;
+		}
+		return -1;
+	}
+
+	/**
+	 * 判断[s, t)区间的代码是否只是计算一个值而没有副作用，并且中间没有跳转目标
+	 */
+	private boolean pure(int s, int t) {
+		for (int k = s; k < t; k++) {
+			Instruction in = body.get(k);
+			if (k > s && dest.containsValue(in))
+				return false;
+			switch (in.f) {
+			case LIT: case LITS: case LOD: case LODS:
+				break;
+			case OPR:
+				switch (in.a.vn) {
+				case 1: case 2: case 3: case 4: case 6: case 18: case 19: case 22: case 23:
+					break;
+				case 5:
+					Instruction d = body.get(k - 1);
+					if (d.f != Fct.LIT || d.a.vn == 0)
+						return false;
+					break;
+				default:
+					return false;
+				}
+				break;
+			default:
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 在名字表中查找数组的元素个数
+	 * @param level 数组所在的层次
+	 * @param adr 数组的起始地址
+	 * @return 元素个数，找不到时返回-1
+	 */
+	private int arraySize(int level, int adr) {
+		if (unit != null)
+			return unit.arraySize(level, adr);
+		for (int k = table.tx; k > 0; k--) {
+			Table.Item item = table.get(k);
+			if (item.kind == Objekt.array && item.level == level && item.adr == adr)
+				return item.size;
+		}
+		return -1;
+	}
+
+	private static long frame(int lev, int adr) {
+		return ((long) lev << 32) | adr;
+	}
+
+	/**
+	 * 循环不变式外提与归纳变量强度削弱。while循环的代码形如
+	 * <pre>
+	 * cx1: 条件  比较跳转 出口
+	 *      循环体
+	 *      JMP cx1
+	 * </pre>
+	 * 因此向回跳的JMP就确定了一个循环，从最内层的循环开始依次处理。
+	 */
+	private void hoistLoopInvariants() {
+		IdentityHashMap<Instruction, Boolean> done = new IdentityHashMap<Instruction, Boolean>();
+		for (;;) {
+			int h = -1, e = -1;
+			for (int k = 0; k < body.size(); k++) {
+				Instruction in = body.get(k);
+				if (in.f == Fct.JMP && dest.containsKey(in) && !done.containsKey(in)) {
+					int x = body.indexOf(dest.get(in));
+					if (x <= k && (h < 0 || k - x < e - h)) {
+						h = x;
+						e = k;
+					}
+				}
+			}
+			if (h < 0)
+				break;
+			done.put(body.get(e), true);
+			optimizeLoop(h, e);
+		}
+	}
+
+	/**
+	 * 处理一个循环
+	 * @param h 循环头（条件的第一条指令）的位置
+	 * @param e 回跳JMP的位置
+	 */
+	private void optimizeLoop(int h, int e) {
+		Instruction back = body.get(e);
+		HashSet<Long> stored = new HashSet<Long>();
+		for (int k = h; k <= e; k++) {
+			Instruction in = body.get(k);
+			if (isCall(in.f) || in.f == Fct.OPR && in.a.vn == 24)
+				return;						// 被调用的过程可能修改任何外层变量，join后能看到其他任务的修改
+			if (in.f == Fct.STO)
+				stored.add(slot(in));
+			if (in.f == Fct.STA) {
+				// 下标未知，整个数组都可能被修改；本层的数组还可能是内联进来的，取到堆栈帧末尾
+				int n = in.l == 0 ? dx - in.a.vn : arraySize(lev - in.l, in.a.vn);
+				if (n < 0)
+					return;
+				for (int a = in.a.vn; a < in.a.vn + n; a++)
+					stored.add(slot(make(Fct.LOD, in.l, a)));
+			}
+		}
+		removeBoundChecks(h, e);
+		e = body.indexOf(back);
+
+		// 循环前置块：在进入循环前计算好不变式与归纳变量的初值
+		ArrayList<Instruction> pre = new ArrayList<Instruction>();
+
+		// 把不变的表达式片段换成临时变量，相同的片段共用一个临时变量
+		ArrayList<int[]> segs = invariantSegments(h, e, stored);
+		HashMap<String, Integer> temps = new HashMap<String, Integer>();
+		for (int n = segs.size() - 1; n >= 0; n--) {
+			int s = segs.get(n)[0], t = segs.get(n)[1];
+			String key = text(s, t);
+			Integer tmp = temps.get(key);
+			if (tmp == null) {
+				tmp = dx++;
+				temps.put(key, tmp);
+				for (int k = s; k < t; k++)
+					pre.add(copy(body.get(k)));
+				pre.add(make(Fct.STO, 0, tmp));
+			}
+			replace(s, t, make(Fct.LOD, 0, tmp));
+		}
+
+		e = body.indexOf(back);
+		reduceInductions(h, e, stored, pre);
+
+		if (pre.isEmpty())
+			return;
+
+		// 从循环外跳到循环头的指令改为跳到前置块，回跳的JMP仍然跳到循环头
+		Instruction header = body.get(h);
+		e = body.indexOf(back);
+		for (Map.Entry<Instruction, Instruction> en : dest.entrySet()) {
+			if (en.getValue() == header) {
+				int k = body.indexOf(en.getKey());
+				if (k < h || k > e)
+					en.setValue(pre.get(0));
+			}
+		}
+		body.addAll(h, pre);
+	}
+
+	/**
+	 * 消除循环中多余的数组下标检查。循环形如
+	 * <pre>
+	 *      LIT c0  STO 0 i       （c0 >= 0）
+	 * h:   LOD 0 i  LIT K  JGE 出口
+	 *      ...  LOD 0 i  CHK 0 n  ...      （K <= n）
+	 *      ...  i := i + c  ...            （c > 0）
+	 *      JMP h
+	 * </pre>
+	 * 并且循环中对i的赋值都是递增，那么每次到达循环头时都有 0 <= i < K。若从循环头到CHK的
+	 * 任何路径上都不会修改i，CHK检查的下标必在[0, n)内，可以删除。含有spawn的过程不做：
+	 * 循环前启动的内层过程可能与循环同时修改i，循环体中看不到这样的赋值
+	 * @param h 循环头位置
+	 * @param e 回跳JMP位置
+	 */
+	private void removeBoundChecks(int h, int e) {
+		if (h < 3 || h + 2 >= e)
+			return;
+		for (Instruction in : body) {
+			if (in.f == Fct.SPN)
+				return;
+		}
+		Instruction x = body.get(h), k = body.get(h + 1), j = body.get(h + 2);
+		Instruction c0 = body.get(h - 2), init = body.get(h - 1);
+		if (x.f != Fct.LOD || x.l != 0 || k.f != Fct.LIT || j.f != Fct.JGE)
+			return;
+		if (c0.f != Fct.LIT || c0.a.vn < 0 || init.f != Fct.STO || slot(init) != slot(x))
+			return;
+		Instruction header = body.get(h), back = body.get(e);
+		for (Map.Entry<Instruction, Instruction> en : dest.entrySet()) {
+			if (en.getValue() == header && en.getKey() != back || en.getValue() == c0 || en.getValue() == init)
+				return;
+		}
+
+		// i只能递增，记下每处赋值的位置
+		ArrayList<Integer> updates = new ArrayList<Integer>();
+		for (int n = h; n < e; n++) {
+			Instruction in = body.get(n);
+			if (in.f == Fct.STA && in.l == 0 && in.a.vn <= x.a.vn)
+				return;						// i可能是数组的元素
+			if (in.f == Fct.STO && slot(in) == slot(x)) {
+				int c = n - 3 >= h ? step(n) : 0;
+				if (c <= 0 || c > Short.MAX_VALUE)
+					return;
+				updates.add(n);
+			}
+		}
+
+		for (int n = h + 3; n < e; n++) {
+			Instruction in = body.get(n), prev = body.get(n - 1);
+			if (in.f != Fct.CHK || prev.f != Fct.LOD || slot(prev) != slot(x) || k.a.vn > in.a.vn)
+				continue;
+			if (!updates.isEmpty() && updates.get(0) < n)
+				continue;
+			// 内层循环回跳到CHK之前时，回跳前对i的修改也会影响CHK
+			boolean safe = true;
+			for (int m = n + 1; m < e && safe; m++) {
+				Instruction jmp = body.get(m);
+				if (isJump(jmp.f) && dest.containsKey(jmp) && body.indexOf(dest.get(jmp)) <= n)
+					safe = updates.isEmpty() || updates.get(0) > m;
+			}
+			if (safe) {
+				replace(n, n + 1, new ArrayList<Instruction>());
+				e--;
+				for (int m = 0; m < updates.size(); m++)
+					updates.set(m, updates.get(m) - 1);
+				n--;
+			}
+		}
+	}
+
+	/**
+	 * 找出循环中所有极大的不变表达式片段。按栈式代码模拟求值，栈中每一项记录产生该值的
+	 * 代码片段起点以及它是否循环不变；当一个不变的值被非纯运算消耗时它就是一个候选片段。
+	 * 除法只有在除数为非零常数时才认为是不变式，以免外提后在循环不执行时引入除零错误。
+	 * @param h 循环头位置
+	 * @param e 回跳JMP位置
+	 * @param stored 循环中被赋值的变量
+	 * @return 片段列表，每项为[起点, 终点)
+	 */
+	private ArrayList<int[]> invariantSegments(int h, int e, HashSet<Long> stored) {
+		ArrayList<int[]> segs = new ArrayList<int[]>();
+		int[] start = new int[e - h + 2];
+		boolean[] inv = new boolean[e - h + 2];
+		int sp = 0;
+
+		for (int k = h; k <= e; k++) {
+			Instruction in = body.get(k);
+			int pops = pops(in), pushes = pushes(in), op = in.a.vn;
+			if (in.f == Fct.CHK)			// 下标检查可能在条件分支里或循环不执行时不该发生，不能外提：
+				pops = pushes = 1;			// 看作消耗下标、压回一个可变的值，片段在它之前结束
+			boolean pure = in.f == Fct.LIT || in.f == Fct.LOD
+					|| in.f == Fct.OPR && (op >= 1 && op <= 5 || op == 6);
+			if (sp < pops) {
+				sp = 0;							// 栈内容跨越了基本块，放弃已有的片段
+				pure = false;
+				pops = 0;
+			}
+
+			if (pure) {
+				boolean v = true;
+				if (in.f == Fct.LOD)
+					v = !stored.contains(slot(in));
+				if (in.f == Fct.OPR && op == 5) {
+					Instruction d = body.get(k - 1);
+					v = start[sp-1] == k - 1 && d.f == Fct.LIT && d.a.vn != 0;
+				}
+				for (int n = sp - pops; n < sp; n++)
+					v = v && inv[n];
+				if (!v) {
+					for (int n = sp - pops; n < sp; n++)
+						keep(segs, start[n], n + 1 < sp ? start[n+1] : k, inv[n]);
+				}
+				sp -= pops;
+				start[sp] = pops > 0 ? start[sp] : k;
+				inv[sp] = v;
+				sp++;
+			} else {
+				for (int n = sp - pops; n < sp; n++)
+					keep(segs, start[n], n + 1 < sp ? start[n+1] : k, inv[n]);
+				int s = pops > 0 ? start[sp - pops] : k;
+				sp -= pops;
+				for (int n = 0; n < pushes; n++) {
+					start[sp] = s;
+					inv[sp] = false;
+					sp++;
+				}
+			}
+		}
+		// 片段在结束时才加入，内层先结束的片段可能排在前面；调用者从后往前替换，要求按起点排序
+		segs.sort((x, y) -> x[0] - y[0]);
+		return segs;
+	}
+
+	/**
+	 * 记录一个值得外提的片段，至少要包含一条运算指令
+	 */
+	private void keep(ArrayList<int[]> segs, int s, int t, boolean inv) {
+		if (inv && t - s >= 2)
+			segs.add(new int[] {s, t});
+	}
+
+	/**
+	 * 归纳变量的强度削弱。若循环中对变量i的赋值都形如 i = i ± c，则 i * k（k为常数或不变量）
+	 * 可以用临时变量t代替，每次i改变后执行 t = t ± c * k，t在前置块中初始化为 i * k。
+	 * 在这个虚拟机上乘法并不比加法慢，只有当省下的指令比维护t增加的指令多时才做变换。
+	 * @param h 循环头位置
+	 * @param e 回跳JMP位置
+	 * @param stored 循环中被赋值的变量
+	 * @param pre 循环前置块
+	 */
+	private void reduceInductions(int h, int e, HashSet<Long> stored, ArrayList<Instruction> pre) {
+		// 找出归纳变量及其每次的增量
+		HashMap<Long, ArrayList<Instruction>> updates = new HashMap<Long, ArrayList<Instruction>>();
+		HashSet<Long> other = new HashSet<Long>();
+		for (int k = h; k <= e; k++) {
+			Instruction in = body.get(k);
+			if (in.f != Fct.STO)
+				continue;
+			if (k - 3 >= h && step(k) != 0) {
+				ArrayList<Instruction> list = updates.get(slot(in));
+				if (list == null) {
+					list = new ArrayList<Instruction>();
+					updates.put(slot(in), list);
+				}
+				list.add(in);
+			} else {
+				other.add(slot(in));
+			}
+		}
+		for (Long v : other)
+			updates.remove(v);
+		if (updates.isEmpty())
+			return;
+
+		// 按(归纳变量, 乘数)分组统计 i * k 的使用
+		HashMap<String, ArrayList<Instruction>> uses = new HashMap<String, ArrayList<Instruction>>();
+		for (int k = h; k + 2 <= e; k++) {
+			Instruction x = body.get(k), y = body.get(k + 1), z = body.get(k + 2);
+			if (z.f != Fct.OPR || z.a.vn != 4)
+				continue;
+			Instruction iv = null, m = null;
+			if (x.f == Fct.LOD && updates.containsKey(slot(x)) && constant(y, stored)) {
+				iv = x;
+				m = y;
+			} else if (y.f == Fct.LOD && updates.containsKey(slot(y)) && constant(x, stored)) {
+				iv = y;
+				m = x;
+			}
+			if (iv == null || m.f == Fct.LOD && slot(m) == slot(iv))
+				continue;
+			String key = slot(iv) + " " + m.f + " " + m.l + " " + m.a.vn;
+			ArrayList<Instruction> list = uses.get(key);
+			if (list == null) {
+				list = new ArrayList<Instruction>();
+				uses.put(key, list);
+				list.add(iv);
+				list.add(m);
+			}
+			list.add(x);
+			k += 2;
+		}
+
+		for (ArrayList<Instruction> list : uses.values()) {
+			Instruction iv = list.get(0), m = list.get(1);
+			ArrayList<Instruction> ups = updates.get(slot(iv));
+			int n = list.size() - 2;
+			// 每处使用省下2条指令，每处更新增加4条指令
+			if (2 * n <= 4 * ups.size())
+				continue;
+			if (m.f == Fct.LOD) {
+				boolean unit = true;
+				for (Instruction u : ups)
+					unit = unit && Math.abs(step(body.indexOf(u))) == 1;
+				if (!unit)
+					continue;
+			}
+
+			int tmp = dx++;
+			for (int k = 2; k < list.size(); k++) {
+				int s = body.indexOf(list.get(k));
+				replace(s, s + 3, make(Fct.LOD, 0, tmp));
+			}
+			for (Instruction u : ups) {
+				int k = body.indexOf(u), c = step(k);
+				ArrayList<Instruction> upd = new ArrayList<Instruction>();
+				upd.add(make(Fct.LOD, 0, tmp));
+				if (m.f == Fct.LIT) {
+					upd.add(make(Fct.LIT, 0, c * m.a.vn));
+					upd.add(make(Fct.OPR, 0, 2));
+				} else {
+					upd.add(copy(m));
+					upd.add(make(Fct.OPR, 0, c > 0 ? 2 : 3));
+				}
+				upd.add(make(Fct.STO, 0, tmp));
+				body.addAll(k + 1, upd);
+			}
+			pre.add(copy(iv));
+			pre.add(copy(m));
+			pre.add(make(Fct.OPR, 0, 4));
+			pre.add(make(Fct.STO, 0, tmp));
+		}
+	}
+
+	/**
+	 * 判断位置k处的STO是否形如 i = i ± c
+	 * @return 增量c，不是这种形式时返回0
+	 */
+	private int step(int k) {
+		Instruction st = body.get(k);
+		Instruction x = body.get(k - 3), c = body.get(k - 2), op = body.get(k - 1);
+		if (x.f != Fct.LOD || slot(x) != slot(st) || c.f != Fct.LIT || op.f != Fct.OPR)
+			return 0;
+		if (op.a.vn == 2)
+			return c.a.vn;
+		if (op.a.vn == 3)
+			return -c.a.vn;
+		return 0;
+	}
+
+	/**
+	 * 判断一条取值指令在循环中是否不变
+	 */
+	private boolean constant(Instruction in, HashSet<Long> stored) {
+		return in.f == Fct.LIT || in.f == Fct.LOD && !stored.contains(slot(in));
+	}
+
+	/**
+	 * 用新指令替换[s, t)区间的代码，原来跳到被替换指令的跳转改为跳到新指令
+	 */
+	private void replace(int s, int t, Instruction in) {
+		ArrayList<Instruction> list = new ArrayList<Instruction>();
+		list.add(in);
+		replace(s, t, list);
+	}
+
+	/**
+	 * 用一段新代码替换[s, t)区间的代码，原来跳到被替换指令的跳转改为跳到新代码的开头，
+	 * 新代码为空时改为跳到区间后的第一条指令
+	 */
+	private void replace(int s, int t, ArrayList<Instruction> list) {
+		Instruction to = list.isEmpty() ? body.get(t) : list.get(0);
+		for (int k = s; k < t; k++)
+			dest.remove(body.get(k));
+		for (Map.Entry<Instruction, Instruction> en : dest.entrySet()) {
+			int k = body.indexOf(en.getValue());
+			if (k >= s && k < t)
+				en.setValue(to);
+		}
+		body.subList(s, t).clear();
+		body.addAll(s, list);
+	}
+
+	/**
+	 * 代码片段的文本，用于识别相同的表达式
+	 */
+	private String text(int s, int t) {
+		StringBuilder sb = new StringBuilder();
+		for (int k = s; k < t; k++) {
+			Instruction in = body.get(k);
+			sb.append(in.f).append(' ').append(in.l).append(' ').append(in.a).append(';');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * 变量的标识：同一过程内对同一变量的访问总是使用相同的层次差和地址
+	 */
+	private static long slot(Instruction in) {
+		return ((long) in.l << 32) | in.a.vn;
+	}
+
+	private static Instruction make(Fct f, int l, int a) {
+		Instruction in = new Instruction();
+		in.f = f;
+		in.l = l;
+		in.a = new Data(a);
+		return in;
+	}
+
+	private static Instruction copy(Instruction x) {
+		Instruction in = new Instruction();
+		in.f = x.f;
+		in.l = x.l;
+		in.a = x.a.clone();
+		in.line = x.line;
+		return in;
+	}
+
+	/**
+	 * 判断是否为以a为目标地址的跳转指令
+	 */
+	static boolean isJump(Fct f) {
+		switch (f) {
+		case JMP: case JPC:
+		case JEQ: case JNE: case JLT: case JGE: case JGT: case JLE: case JEV:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * 判断是否为以a为入口地址调用过程的指令
+	 */
+	static boolean isCall(Fct f) {
+		return f == Fct.CAL || f == Fct.SPN || f == Fct.TCL;
+	}
+
+	/**
+	 * 指令从栈顶弹出的值的个数
+	 */
+	static int pops(Instruction in) {
+		switch (in.f) {
+		case STO: case STOS: case JPC: case JEV: case LDA:
+			return 1;
+		case STA:
+			return 2;
+		case JEQ: case JNE: case JLT: case JGE: case JGT: case JLE:
+			return 2;
+		case OPR:
+			switch (in.a.vn) {
+			case 1: case 6: case 14: case 21: case 22: case 23: case 33:
+				return 1;
+			case 2: case 3: case 4: case 5:
+			case 8: case 9: case 10: case 11: case 12: case 13:
+			case 18: case 19: case 27: case 29: case 30: case 32:
+				return 2;
+			case 28: case 31:
+				return 3;
+			default:
+				return 0;
+			}
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * 指令向栈顶压入的值的个数
+	 */
+	static int pushes(Instruction in) {
+		switch (in.f) {
+		case LIT: case LOD: case LITS: case LODS: case LDA:
+			return 1;
+		case OPR:
+			switch (in.a.vn) {
+			case 0: case 14: case 15: case 17: case 21: case 24: case 28: case 31: case 33:
+				return 0;
+			default:
+				return 1;
+			}
+		default:
+			return 0;
+		}
+	}
+}
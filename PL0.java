@@ -19,9 +19,9 @@ public class PL0 {
 	 */
 	public static final int amax = (int)((1 << 10) - 1);
 	/**
-	 * 最多的虚拟机代码数
+	 * 最多的虚拟机代码数。代码数组按需加倍，这只是上限（TraceBuffer中指令地址占24位）
 	 */
-	public static final int cxmax = 500;
+	public static final int cxmax = 1 << 20;
 	/**
 	 * 最大允许过程嵌套声明层数 [0, levmax]
 	 */
@@ -30,12 +30,20 @@ public class PL0 {
 	 * number的最大位数
 	 */
 	public static final int nmax = 14;
+	/**
+	 * 可以内联的过程的最大指令数
+	 */
+	public static final int inlmax = 20;
+	/**
+	 * 最多同时运行的任务数（含主程序），即共享运行栈的区段数
+	 */
+	public static final int spnmax = 32;
 	/**
 	 * 关键字个数
 	 */
 	public static final int norw = 32;
 	/**
-	 * 名字表容量
+	 * 名字表的初始容量，不够时加倍
 	 */
 	public static final int txmax = 100;
 	
@@ -60,6 +68,10 @@ public class PL0 {
 	 * 输出名字表
 	 */
 	public static PrintStream fas; 
+	/**
+	 * 编译过程中显示源程序和错误的终端，嵌入使用时由Program换成其他流
+	 */
+	public static PrintStream console = System.out;
 	/**
 	 * 显示虚拟机代码与否
 	 */
@@ -68,6 +80,18 @@ public class PL0 {
 	 * 显示名字表与否
 	 */
 	public static boolean tableswitch;
+	/**
+	 * 优化虚拟机代码与否
+	 */
+	public static boolean optswitch = true;
+	/**
+	 * 并行优化的线程数，1表示每个过程生成完立即优化（可用增量编译缓存）
+	 */
+	public static int jobs = 1;
+	/**
+	 * 导入模块时是否把编译结果写入“文件名.unit”。只有命令行编译时写，嵌入使用时不写任何文件
+	 */
+	public static boolean unitcache = false;
 	
 	// 一个典型的编译器的组成部分
 
@@ -87,6 +111,10 @@ public class PL0 {
 	 * 名字表
 	 */
 	public static Table table; 
+	/**
+	 * 增量编译缓存，同一进程中多次编译时保留上一次的结果
+	 */
+	public static CompileCache cache = new CompileCache();
 	
 	// 为避免多次创建BufferedReader，我们使用全局统一的Reader
 	/**
@@ -94,54 +122,157 @@ public class PL0 {
 	 */
 	public static BufferedReader stdin; 
 	
+	/**
+	 * 本次编译使用的增量编译缓存
+	 */
+	private final CompileCache compileCache;
+
 	/**
 	 * 构造函数，初始化编译器所有组成部分
 	 * @param fin PL/0 源文件的输入流
 	 */
 	public PL0(BufferedReader fin) {
+		this(fin, cache);
+	}
+
+	/**
+	 * 构造函数，使用指定的增量编译缓存
+	 * @param fin PL/0 源文件的输入流
+	 * @param c 增量编译缓存
+	 */
+	PL0(BufferedReader fin, CompileCache c) {
 		// 各部件的构造函数中都含有C语言版本的 init() 函数的一部分代码
+		Err.err = 0;
 		lex = new Scanner(fin);
 		interp = new Interpreter();
 		table = new Table();
-		parser = new Parser(lex, table, interp);
+		parser = new Parser(lex, table, interp, c);
+		compileCache = c;
 	}
 
 	/**
-	 * 执行编译动作
+	 * 执行编译动作，目标代码和名字表清单写入fa.tmp和fas.tmp，发生严重错误时退出
 	 * @return 是否编译成功
 	 */
 	boolean compile() {
-		boolean abort = false;
-		
 		try {
 			PL0.fa = new PrintStream("fa.tmp");
 			PL0.fas = new PrintStream("fas.tmp");
-
-			parser.start();			// 开始语法分析过程（连同语法检查、目标代码生成）
+		} catch (IOException e) {
+			System.out.println("Can't open file!");
+			PL0.fa1.close();
+			return false;
+		}
+		try {
+			return build();
 		} catch (Error e) {
 			// 如果是发生严重错误则直接中止
-			abort = true;
-		} catch (IOException e) {
+			System.exit(0);
+			return false;
+		}
+	}
+
+	/**
+	 * 用已经设置好的fa、fa1、fas编译，结束后关闭它们
+	 * @return 是否编译成功
+	 * @throws Error 发生严重错误（如程序太长、程序不完整）时
+	 */
+	boolean build() {
+		boolean abort = true;
+		long t0 = System.nanoTime();
+		int hits = compileCache.hits, misses = compileCache.misses;
+		
+		try {
+			parser.start();			// 开始语法分析过程（连同语法检查、目标代码生成）
+			compileCache.commit(Err.err == 0);
+			abort = false;
 		} finally { 
 			PL0.fa.close();
 			PL0.fa1.close();
 			PL0.fas.close();
+			RuntimeStats.compiled(System.nanoTime() - t0, !abort && Err.err == 0, compileCache.hits - hits, compileCache.misses - misses);
 		}
-		if (abort)
-			System.exit(0);
 				
 		// 编译成功是指完成编译过程并且没有错误
 		return (Err.err == 0);
 	}
 
 	/**
-	 * 主函数
+	 * 主函数。可选参数用来限制程序运行时使用的资源，超出时程序被终止：
+	 * -maxinsn n 最多执行的指令数，-maxstack n 运行栈最大深度，-maxstr n 产生的字符串总长度，
+	 * -stats 运行结束后输出资源使用情况（指定了任何配额时也会输出），
+	 * -timings 运行结束后输出编译和运行各阶段的时间、分配的字节数和指令数，
+	 * -trace n 记录最后执行的n条指令，运行结束（或被终止）后写入trace.tmp，用TraceView查看，
+	 * -checkpoint file n 每执行n条指令把运行状态写入快照文件file，
+	 * -resume file 不编译，从快照文件file处继续运行（-maxinsn和-maxstr覆盖快照中的配额，运行栈大小以快照为准），
+	 * -jobs n 全部过程分析完后在n个线程中并行优化（不使用增量编译缓存）
 	 */
 	public static void main(String[] args) {
 		// 原来 C 语言版的一些语句划分到compile()和Parser.parse()中
+		long maxinsn = Long.MAX_VALUE, maxstr = Long.MAX_VALUE;
+		int maxstack = 0, trace = 0;
+		boolean stats = false;
+		String checkpoint = null, restore = null;
+		long every = 0;
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+			case "-maxinsn":
+				maxinsn = Long.parseLong(args[++i]);
+				stats = true;
+				break;
+			case "-maxstack":
+				maxstack = Integer.parseInt(args[++i]);
+				stats = true;
+				break;
+			case "-maxstr":
+				maxstr = Long.parseLong(args[++i]);
+				stats = true;
+				break;
+			case "-stats":
+				stats = true;
+				break;
+			case "-trace":
+				trace = Integer.parseInt(args[++i]);
+				break;
+			case "-checkpoint":
+				checkpoint = args[++i];
+				every = Long.parseLong(args[++i]);
+				break;
+			case "-resume":
+				restore = args[++i];
+				break;
+			case "-jobs":
+				jobs = Math.max(1, Integer.parseInt(args[++i]));
+				break;
+			case "-timings":
+			case "--timings":
+				Timings.enabled = true;
+				break;
+			default:
+				System.out.println("Unknown option " + args[i]);
+				return;
+			}
+		}
+
 		String fname = "";
 		stdin = new BufferedReader(new InputStreamReader(System.in));
 		BufferedReader fin;
+		if (restore != null) {
+			try {
+				PL0.fa2 = new PrintStream("fa2.tmp");
+				interp = Interpreter.restore(restore);
+			} catch (IOException e) {
+				System.out.println("Can't restore snapshot " + restore);
+				return;
+			}
+			if (maxinsn != Long.MAX_VALUE)
+				interp.maxInstructions = maxinsn;
+			if (maxstr != Long.MAX_VALUE)
+				interp.maxStringBytes = maxstr;
+			execute(trace, stats, checkpoint, every);
+			System.out.println();
+			return;
+		}
 		try {
 			// 输入文件名
 			fname = "";
@@ -169,12 +300,19 @@ public class PL0 {
 
 			// 构造编译器并初始化
 			PL0 pl0 = new PL0(fin);
+			cache.load("cache.tmp");		// 上一次编译没有变化的过程直接复用
+			PL0.unitcache = true;
 			
 			if (pl0.compile()) {
+				cache.save("cache.tmp");
 				// 如果成功编译则接着解释运行
 				PL0.fa2 = new PrintStream("fa2.tmp");
-				interp.interpret();
-				PL0.fa2.close();
+				interp.maxInstructions = maxinsn;
+				interp.maxStringBytes = maxstr;
+				if (maxstack > 0)
+					interp.maxStack = maxstack;
+				interp.start();
+				execute(trace, stats, checkpoint, every);
 			} else {
 				System.out.print("Errors in pl/0 program");
 			}
@@ -185,4 +323,31 @@ public class PL0 {
 
 		System.out.println();
 	}
+
+	/**
+	 * 运行已经start()或从快照恢复的程序，结束后写出轨迹并输出报告
+	 * @param checkpoint 快照文件名，为null时不做快照
+	 * @param every 每执行这么多条指令做一次快照
+	 */
+	private static void execute(int trace, boolean stats, String checkpoint, long every) {
+		if (trace > 0)
+			interp.trace = new TraceBuffer(trace);
+		Timings.Phase prev = Timings.enter(Timings.Phase.run);
+		interp.resume(checkpoint, every);
+		Timings.exit(prev);
+		Timings.executed(interp.executed);
+		try {
+			if (trace > 0)
+				interp.trace.dump("trace.tmp", interp.code, interp.cx);
+		} catch (IOException e) {
+			System.out.println("Can't write trace.tmp");
+		}
+		if (stats) {
+			System.out.println();
+			System.out.print(interp.usage());
+		}
+		if (Timings.enabled)
+			Timings.report();
+		PL0.fa2.close();
+	}
 }
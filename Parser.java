@@ -1,3 +1,6 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+
 /**
  *　　语法分析器。这是PL/0分析器中最重要的部分，在语法分析的过程中穿插着语法错误检查和目标代码生成。
  */
@@ -14,22 +17,48 @@ public class Parser {
 	 * 对目标代码生成器的引用
 	 */
 	private Interpreter interp;
-	
-	private final int symnum = Symbol.values().length;
+	/**
+	 * 代码优化器，每个过程的代码生成完毕后对其进行优化
+	 */
+	private Optimizer optimizer;
+
+	/**
+	 * 并行后端，为null时每个过程生成完立即优化
+	 */
+	private Backend backend;
+
+	/**
+	 * 正在编译的模块，编译主程序时为null
+	 */
+	private ModuleUnit module;
+	/**
+	 * 增量编译缓存
+	 */
+	private CompileCache cache;
+	/**
+	 * 当前过程的路径，如 /outer/inner，主程序为空串
+	 */
+	private String scope = "";
 	
 	// 实际上这就是声明、语句和因子的FIRST集合
 	/**
 	 * 表示声明开始的符号集合
 	 */
-	private SymSet declbegsys;
+	private static final long declbegsys = SymSet.of(Symbol.constsym) | SymSet.of(Symbol.varsym)
+			| SymSet.of(Symbol.procsym) | SymSet.of(Symbol.strsym) | SymSet.of(Symbol.arraysym)
+			| SymSet.of(Symbol.mapsym) | SymSet.of(Symbol.importsym);
 	/**
 	 * 表示语句开始的符号集合
 	 */
-	private SymSet statbegsys;
+	private static final long statbegsys = SymSet.of(Symbol.ifsym) | SymSet.of(Symbol.whilesym)
+			| SymSet.of(Symbol.scansym) | SymSet.of(Symbol.printsym)
+			| SymSet.of(Symbol.lbrace) | SymSet.of(Symbol.callsym)
+			| SymSet.of(Symbol.spawnsym) | SymSet.of(Symbol.joinsym);
 	/**
 	 * 表示因子开始的符号集合
 	 */
-	private SymSet facbegsys;
+	private static final long facbegsys = SymSet.of(Symbol.ident) | SymSet.of(Symbol.number)
+			| SymSet.of(Symbol.strsym) | SymSet.of(Symbol.lparen);
 	
 	/**
 	 * 当前符号，由nextsym()读入
@@ -47,34 +76,16 @@ public class Parser {
 	 * @param l 编译器的词法分析器
 	 * @param t 编译器的符号表
 	 * @param i 编译器的目标代码生成器
+	 * @param c 增量编译缓存
 	 */
-	public Parser(Scanner l, Table t, Interpreter i) {
+	public Parser(Scanner l, Table t, Interpreter i, CompileCache c) {
 		lex = l;
 		table = t;
 		interp = i;
-		
-		// 设置声明开始符号集
-		declbegsys = new SymSet(symnum);
-		declbegsys.set(Symbol.constsym);
-		declbegsys.set(Symbol.varsym);
-		declbegsys.set(Symbol.procsym);
-		declbegsys.set(Symbol.strsym);
-
-		// 设置语句开始符号集
-		statbegsys = new SymSet(symnum);
-		statbegsys.set(Symbol.ifsym);
-		statbegsys.set(Symbol.whilesym);
-		statbegsys.set(Symbol.scansym);
-		statbegsys.set(Symbol.printsym);
-		statbegsys.set(Symbol.lbrace);
-		statbegsys.set(Symbol.callsym);
-
-		// 设置因子开始符号集
-		facbegsys = new SymSet(symnum);
-		facbegsys.set(Symbol.ident);
-		facbegsys.set(Symbol.number);
-		facbegsys.set(Symbol.strsym);
-		facbegsys.set(Symbol.lparen);
+		cache = c;
+		optimizer = new Optimizer(i, t);
+		if (PL0.jobs > 1 && PL0.optswitch)
+			backend = new Backend(i);
 	}
 	
 	/**
@@ -84,20 +95,52 @@ public class Parser {
 	public void start() {
 		// <program> = "main" "{" <stmt_list> "}"
 
+		Timings.Phase prev = Timings.enter(Timings.Phase.parse);
 		nextSym();		// 前瞻分析需要预先读入一个符号
 
 		checkNextSymbol(Symbol.mainsym, 101);
 		checkNextSymbol(Symbol.lbrace, 102);
 
-		SymSet nxtlev = new SymSet(symnum);
-		nxtlev.or(declbegsys);
-		nxtlev.or(statbegsys);
-		nxtlev.set(Symbol.rbrace);
+		long nxtlev = declbegsys | statbegsys | SymSet.of(Symbol.rbrace);
 
 		parseStmtList(0, nxtlev, false);
 		
 		if (sym != Symbol.rbrace)
 			Err.report(103);
+
+		if (backend != null) {
+			Timings.enter(Timings.Phase.optimize);
+			backend.optimize(PL0.jobs);
+			Timings.enter(Timings.Phase.link);
+			backend.link(optimizer);
+		}
+		Timings.enter(Timings.Phase.link);
+		optimizer.removeUnreachable();	// 删除不可到达的代码和从未调用的过程
+		Timings.exit(prev);
+	}
+
+	/**
+	 * 分析一个模块，结果记入u。模块只有说明部分，其中的过程都没有被调用，因此不删除不可到达的代码
+	 * @param u 模块
+	 */
+	public void startModule(ModuleUnit u) {
+		// <module> = "module" "{" <declare_list> <procedure_list> "}"
+
+		module = u;
+		backend = null;
+		Timings.Phase prev = Timings.enter(Timings.Phase.parse);
+		nextSym();
+
+		checkNextSymbol(Symbol.modulesym, 104);
+		checkNextSymbol(Symbol.lbrace, 102);
+
+		long nxtlev = declbegsys | statbegsys | SymSet.of(Symbol.rbrace);
+
+		parseStmtList(0, nxtlev, false);
+
+		if (sym != Symbol.rbrace)
+			Err.report(103);
+		Timings.exit(prev);
 	}
 	
 	/**
@@ -115,15 +158,15 @@ public class Parser {
 	 * @param s2 如果不是我们需要的，则需要一个补救用的集合
 	 * @param errcode 错误号
 	 */
-	void test(SymSet s1, SymSet s2, int errcode) {
+	void test(long s1, long s2, int errcode) {
 		// 在某一部分（如一条语句，一个表达式）将要结束时时我们希望下一个符号属于某集合
 		//（该部分的后跟符号），test负责这项检测，并且负责当检测不通过时的补救措施，程
 		// 序在需要检测时指定当前需要的符号集合和补救用的集合（如之前未完成部分的后跟符
 		// 号），以及检测不通过时的错误号。
-		if (!s1.get(sym)) {
+		if (!SymSet.contains(s1, sym)) {
 			Err.report(errcode);
 			// 当检测不通过时，不停获取符号，直到它属于需要的集合或补救的集合
-			while (!s1.get(sym) && !s2.get(sym))
+			while (!SymSet.contains(s1, sym) && !SymSet.contains(s2, sym))
 				nextSym();
 		}
 	}
@@ -134,16 +177,18 @@ public class Parser {
 	 * @param lev 当前分程序所在层
 	 * @param fsys 当前模块后跟符号集
 	 */
-	public void parseStmtList(int lev, SymSet fsys, boolean haveBrace) {
+	public void parseStmtList(int lev, long fsys, boolean haveBrace) {
 		// <分程序> := [<变量说明部分>][<过程说明部分>]<语句>
 		// <stmt_list> = {<变量声明> ";"}{<stmt> ";"}
 		
-		int dx0, tx0, cx0;				// 保留初始dx，tx和cx
-		SymSet nxtlev = new SymSet(symnum);
+		int dx0, tx0, cx0, start;		// 保留初始dx，tx和cx
+		long nxtlev;
+		Object event = Timings.beginProcedure();
 		
 		dx0 = dx;						// 记录本层之前的数据量（以便恢复）
 		dx = 3;
 		tx0 = table.tx;					// 记录本层名字的初始位置（以便恢复）
+		start = interp.cx;
 		table.get(table.tx).adr = interp.cx;
 		
 		interp.gen(Fct.JMP, 0, 0);
@@ -153,6 +198,10 @@ public class Parser {
 		
 		// 分析<说明部分>
 		do {
+			// <导入部分>
+			while (sym == Symbol.importsym)
+				parseImport(lev);
+
 			// <变量说明部分>
 			if (sym == Symbol.varsym) {
 				nextSym();
@@ -176,13 +225,37 @@ public class Parser {
 				checkNextSymbol(Symbol.semicolon, 113);
 			}
 
+			if (sym == Symbol.arraysym) {
+				nextSym();
+				parseArrayDeclaration(lev);
+				while (sym == Symbol.comma) {
+					nextSym();
+					parseArrayDeclaration(lev);
+				}
+
+				checkNextSymbol(Symbol.semicolon, 266);
+			}
+
+			if (sym == Symbol.mapsym) {
+				nextSym();
+				parseMapDeclaration(lev);
+				while (sym == Symbol.comma) {
+					nextSym();
+					parseMapDeclaration(lev);
+				}
+
+				checkNextSymbol(Symbol.semicolon, 275);
+			}
+
 
 			
 			// <过程说明部分>
 			while (sym == Symbol.procsym) {
+				Table.Item proc = null;
 				nextSym();
 				if (sym == Symbol.ident) {
-					table.enter(Objekt.procedure, lev, dx);
+					if (table.enter(Objekt.procedure, lev, dx))
+						proc = table.get(table.tx);
 					nextSym();
 				} else { 
 					Err.report(114);				// procedure后应为标识符
@@ -190,30 +263,28 @@ public class Parser {
 
 				checkNextSymbol(Symbol.startsym, 115);
 				
-				nxtlev = (SymSet) fsys.clone();
-				nxtlev.set(Symbol.semicolon);
-				parseStmtList(lev+1, nxtlev, true);
+				nxtlev = fsys | SymSet.of(Symbol.semicolon);
+				parseProcedure(proc, lev, nxtlev);
 				
 				if (sym == Symbol.semicolon) {
 					nextSym();
-					nxtlev = (SymSet) statbegsys.clone();
-					nxtlev.set(Symbol.ident);
-					nxtlev.set(Symbol.procsym);
+					nxtlev = statbegsys | SymSet.of(Symbol.ident) | SymSet.of(Symbol.procsym);
+					if (module != null && lev == 0)
+						nxtlev |= SymSet.of(Symbol.rbrace);		// 模块以过程说明结束
 					test(nxtlev, fsys, 116);
 				} else { 
 					Err.report(117);				// 漏掉了分号
 				}
 			}
 			
-			nxtlev = (SymSet) statbegsys.clone(); 
-			nxtlev.set(Symbol.ident);
+			nxtlev = statbegsys | SymSet.of(Symbol.ident);
 
 			if (sym == Symbol.rbrace) {
 				break;
 			}
 
 			test(nxtlev, declbegsys, 118);
-		} while (declbegsys.get(sym));		// 直到没有声明符号
+		} while (SymSet.contains(declbegsys, sym));		// 直到没有声明符号
 		
 		// 开始生成当前过程代码
 		Table.Item item = table.get(tx0);
@@ -221,27 +292,344 @@ public class Parser {
 		item.adr = interp.cx;					// 当前过程代码地址
 		item.size = dx;							// 声明部分中每增加一条声明都会给dx增加1，
 												// 声明部分已经结束，dx就是当前过程的堆栈帧大小
+		if (module != null && lev == 0 && sym != Symbol.rbrace)
+			Err.report(285);					// 模块中只能有说明
 		cx0 = interp.cx;
 		interp.gen(Fct.INT, 0, dx);			// 生成分配内存代码
+		for (int i = tx0 + 1; i <= table.tx; i++) {
+			Table.Item it = table.get(i);
+			if (it.kind == Objekt.map) {		// 创建本过程的map
+				interp.gen(Fct.OPR, 0, it.val == 1 ? 26 : 25);
+				interp.gen(Fct.STO, 0, it.adr);
+			}
+		}
 		
 		table.debugTable(tx0);
 			
 		// 分析<语句>
-		nxtlev = (SymSet) fsys.clone();		// 每个后跟符号集和都包含上层后跟符号集和，以便补救
-		nxtlev.set(Symbol.semicolon);		// 语句后跟符号为分号或'}'
-		nxtlev.set(Symbol.rbrace);
+		// 每个后跟符号集和都包含上层后跟符号集和，以便补救，语句后跟符号为分号或'}'
+		nxtlev = fsys | SymSet.of(Symbol.semicolon) | SymSet.of(Symbol.rbrace);
 		parseBraceStatement(nxtlev, lev, haveBrace);
+		for (int i = tx0 + 1; i <= table.tx; i++) {
+			Table.Item it = table.get(i);
+			if (it.kind == Objekt.map) {		// 释放本过程的map
+				interp.gen(Fct.LOD, 0, it.adr);
+				interp.gen(Fct.OPR, 0, 33);
+			}
+		}
 		interp.gen(Fct.OPR, 0, 0);		// 每个过程出口都要使用的释放数据段指令
 		
-		nxtlev = new SymSet(symnum);	// 分程序没有补救集合
+		nxtlev = 0;	// 分程序没有补救集合
 		test(fsys, nxtlev, 129);				// 检测后跟符号正确性
 		
-		interp.listcode(cx0);
+		if (backend != null) {
+			backend.add(lev == 0 ? "main" : item.name, lev, start, cx0, dx, table);	// 全部分析完后再并行优化
+			Timings.procedure(event, lev == 0 ? "main" : item.name, lev, interp.cx - cx0, dx, false);
+		} else {
+			Timings.Phase prev = Timings.enter(Timings.Phase.optimize);
+			dx = optimizer.optimize(lev == 0 ? "main" : item.name, lev, cx0, dx);	// 优化当前过程的代码，临时变量会使堆栈帧增大
+			Timings.exit(prev);
+			item.size = dx;
+			Timings.procedure(event, lev == 0 ? "main" : item.name, lev, interp.cx - cx0, dx, false);
+			interp.listcode(cx0);
+		}
+		if (module != null) {
+			module.procedure(item.name, lev, cx0, interp.cx);
+			if (lev == 0)
+				module.exports(table, tx0, dx);
+		}
 		
 		dx = dx0;							// 恢复堆栈帧计数器
 		table.tx = tx0;						// 回复名字表位置
 	}
 
+	/**
+	 * 分析<过程说明部分>中冒号之后的分程序。上一次编译中记号、可见名字和编译选项都相同的过程
+	 * 直接复用缓存的代码并跳过这段记号，否则照常分析，没有错误时把结果存入缓存
+	 * @param proc 过程在名字表中的项，过程名有错时为null
+	 * @param lev 过程说明所在层
+	 * @param fsys 分程序后跟符号集
+	 */
+	private void parseProcedure(Table.Item proc, int lev, long fsys) {
+		int from = lex.position();
+		int end = (proc == null || Err.err > 0 || backend != null) ? -1 : lex.blockEnd(from);
+		String outer = scope;
+		scope = outer + "/" + (proc == null ? "" : proc.name);
+
+		long hash = 0;
+		CompileCache.Entry e = null;
+		if (end > 0) {
+			hash = signature(lex.hash(from, end), lev);
+			e = cache.lookup(scope, hash);
+		}
+
+		Object event = Timings.beginProcedure();
+		if (e != null && link(e, proc, lex.line(from) - e.from)) {
+			cache.reuse(scope);
+			Timings.procedure(event, proc.name, lev + 1, e.code.length, e.size, true);
+			lex.seek(end);
+			nextSym();
+		} else {
+			int start = interp.cx;
+			int procs = optimizer.procedures(), inlines = optimizer.inlines();
+			HashSet<Long> saved = optimizer.beginReads();
+			parseStmtList(lev+1, fsys, true);
+			HashSet<Long> reads = optimizer.endReads(saved);
+			if (end > 0 && Err.err == 0) {
+				cache.misses ++;
+				e = record(proc, hash, start, procs, inlines, reads);
+				if (e != null) {
+					e.from = lex.line(from);
+					e.to = lex.line(end - 1);
+					cache.put(scope, e);
+				}
+			}
+		}
+		scope = outer;
+	}
+
+	/**
+	 * 分析<导入部分>：import "文件名";。读入（必要时编译）模块，代码接在当前代码之后，
+	 * 模块变量分配在主程序的堆栈帧中，模块顶层的名字登入名字表
+	 * @param lev 当前层次，只有主程序可以导入
+	 */
+	private void parseImport(int lev) {
+		nextSym();
+		if (sym != Symbol.strsym || lex.str == null) {
+			Err.report(281);					// import后应为文件名
+		} else {
+			String fname = lex.str;
+			nextSym();
+			if (lev != 0 || module != null)
+				Err.report(282);				// 只有主程序可以导入模块
+			else
+				importModule(fname, lev);
+		}
+		checkNextSymbol(Symbol.semicolon, 284);
+	}
+
+	/**
+	 * 把模块的代码重定位到interp.cx处，模块变量重定位到dx处
+	 * @param fname 模块文件名
+	 * @param lev 当前层次
+	 */
+	private void importModule(String fname, int lev) {
+		ModuleUnit u = ModuleUnit.load(fname);
+		if (u == null) {
+			Err.report(283);					// 模块不能读取或有错误
+			return;
+		}
+		if (interp.cx + u.code.length > PL0.cxmax)
+			throw new Error("Program too long");
+		interp.reserve(interp.cx + u.code.length);
+
+		int base = interp.cx, vars = dx - 3;
+		for (int k = 0; k < u.code.length; k++) {
+			Instruction in = new Instruction();
+			in.f = u.code[k].f;
+			in.l = u.code[k].l;
+			in.a = u.code[k].a.clone();
+			if (Optimizer.isJump(in.f) || Optimizer.isCall(in.f))
+				in.a.vn += base;
+			else if (u.data[k])
+				in.a.vn += vars;
+			interp.code[interp.cx++] = in;
+		}
+
+		for (int k = 0; k < u.names.length; k++) {
+			int adr = u.kinds[k] == Objekt.procedure ? u.adr[k] + base : u.adr[k] + vars;
+			if (!table.enter(u.names[k], u.kinds[k], lev, adr))
+				continue;
+			Table.Item it = table.get(table.tx);
+			it.adr = adr;
+			it.size = u.size[k];
+			it.val = u.kinds[k] == Objekt.constant || u.kinds[k] == Objekt.map ? u.val[k] : it.val;
+			if (u.kinds[k] == Objekt.procedure)
+				it.hash = u.procedureHash(k);
+		}
+		dx += u.dx - 3;
+
+		// 模块中的过程相当于主程序的内层过程，它们读取的模块变量不能当作死存储删除
+		ArrayList<Integer> r = u.reads();
+		long[] reads = new long[r.size()];
+		HashSet<Long> set = new HashSet<Long>();
+		for (int k = 0; k < reads.length; k++) {
+			reads[k] = ((long) lev << 32) | (r.get(k) + vars);
+			set.add(reads[k]);
+		}
+		int[] at = new int[u.procs.length];
+		for (int k = 0; k < at.length; k++)
+			at[k] = u.from[k] + base;
+		if (backend != null) {
+			for (int k = 0; k < at.length; k++)
+				backend.addFixed(u.procs[k], u.lev[k], at[k], u.to[k] + base, set);
+		} else {
+			optimizer.reuse(reads, u.procs, at);
+		}
+
+		if (PL0.listswitch) {
+			String msg = "IMPORTED: module " + fname;
+			System.out.println(msg);
+			PL0.fa.println(msg);
+		}
+		interp.listcode(base);
+	}
+
+	/**
+	 * 计算过程的缓存散列值：分程序的记号，加上当前可见的名字（分程序可能引用它们）和优化选项
+	 * @param tokens 分程序记号的散列值
+	 * @param lev 过程说明所在层
+	 */
+	private long signature(long tokens, int lev) {
+		long h = tokens;
+		for (int i = 1; i <= table.tx; i++) {
+			Table.Item it = table.get(i);
+			h = (h ^ it.name.hashCode()) * 0x100000001b3L;
+			h = (h ^ it.kind.ordinal()) * 0x100000001b3L;
+			h = (h ^ it.level) * 0x100000001b3L;
+			if (it.kind != Objekt.procedure)
+				h = (h ^ it.adr) * 0x100000001b3L;
+			if (it.kind == Objekt.array)
+				h = (h ^ it.size) * 0x100000001b3L;
+			if (it.kind == Objekt.map)
+				h = (h ^ it.val) * 0x100000001b3L;
+		}
+		h = (h ^ lev) * 0x100000001b3L;
+		h = (h ^ (PL0.optswitch ? PL0.inlmax : -1)) * 0x100000001b3L;
+		return h;
+	}
+
+	/**
+	 * 把刚生成的过程代码interp.code[start, cx)整理成缓存项：过程内的跳转和调用地址改为相对地址，
+	 * 调用外部过程的地址改为过程名。代码中有无法用名字表示的外部地址时不缓存
+	 * @return 缓存项，不能缓存时返回null
+	 */
+	private CompileCache.Entry record(Table.Item proc, long hash, int start, int procs, int inlines, HashSet<Long> reads) {
+		int len = interp.cx - start;
+		CompileCache.Entry e = new CompileCache.Entry();
+		e.hash = hash;
+		e.code = new Instruction[len];
+		e.ext = new String[len];
+		long code = 0xcbf29ce484222325L;
+		for (int k = 0; k < len; k++) {
+			Instruction in = interp.code[start + k];
+			Instruction c = new Instruction();
+			c.f = in.f;
+			c.l = in.l;
+			c.a = in.a.clone();
+			if (Optimizer.isJump(in.f) || Optimizer.isCall(in.f)) {
+				if (in.a.vn >= start && in.a.vn < interp.cx) {
+					c.a.vn = in.a.vn - start;
+				} else {
+					Table.Item callee = table.procedure(in.a.vn);
+					if (!Optimizer.isCall(in.f) || callee == null)
+						return null;
+					e.ext[k] = callee.name;
+					c.a.vn = 0;
+					code = (code ^ callee.name.hashCode()) * 0x100000001b3L;
+				}
+			}
+			code = (code ^ c.f.ordinal()) * 0x100000001b3L;
+			code = (code ^ c.l) * 0x100000001b3L;
+			code = (code ^ c.a.toString().hashCode()) * 0x100000001b3L;
+			e.code[k] = c;
+		}
+		e.entry = proc.adr - start;
+		e.size = proc.size;
+
+		// 内联了外部过程的代码依赖于被内联过程的代码
+		ArrayList<String> deps = new ArrayList<String>();
+		ArrayList<Long> depHashes = new ArrayList<Long>();
+		for (int k = inlines; k < optimizer.inlines(); k++) {
+			if (optimizer.inlinedEntry(k) >= start)
+				continue;
+			if (optimizer.inlinedHash(k) == 0)
+				return null;
+			deps.add(optimizer.inlinedName(k));
+			depHashes.add(optimizer.inlinedHash(k));
+		}
+		e.deps = deps.toArray(new String[0]);
+		e.depHashes = new long[deps.size()];
+		for (int k = 0; k < deps.size(); k++)
+			e.depHashes[k] = depHashes.get(k);
+
+		// 记下过程自己的代码读取的全部外层变量，其中有的可能已被先分析的过程读取过，
+		// 但复用时那些过程不一定还读取它们
+		e.reads = new long[reads.size()];
+		int n = 0;
+		for (Long v : reads)
+			e.reads[n++] = v;
+
+		e.procs = new String[optimizer.procedures() - procs];
+		e.entries = new int[e.procs.length];
+		for (int k = 0; k < e.procs.length; k++) {
+			e.procs[k] = optimizer.procedureName(procs + k);
+			e.entries[k] = optimizer.procedureEntry(procs + k) - start;
+		}
+
+		e.codeHash = code == 0 ? 1 : code;
+		proc.hash = e.codeHash;
+		return e;
+	}
+
+	/**
+	 * 把缓存的代码重新定位到interp.cx处：过程内地址加上新的起点，外部调用按名字在名字表中查找。
+	 * 被内联的外部过程代码有变化或外部过程找不到时放弃复用
+	 * @param shift 过程在源程序中移动的行数，指令的行号随之调整
+	 * @return 是否复用成功
+	 */
+	private boolean link(CompileCache.Entry e, Table.Item proc, int shift) {
+		for (int k = 0; k < e.deps.length; k++) {
+			int i = table.position(e.deps[k]);
+			if (i == 0 || table.get(i).kind != Objekt.procedure || table.get(i).hash != e.depHashes[k])
+				return false;
+		}
+		int[] ext = new int[e.code.length];
+		for (int k = 0; k < e.code.length; k++) {
+			if (e.ext[k] == null)
+				continue;
+			int i = table.position(e.ext[k]);
+			if (i == 0 || table.get(i).kind != Objekt.procedure)
+				return false;
+			ext[k] = table.get(i).adr;
+		}
+		if (interp.cx + e.code.length > PL0.cxmax)
+			return false;
+		interp.reserve(interp.cx + e.code.length);
+
+		int base = interp.cx;
+		for (int k = 0; k < e.code.length; k++) {
+			Instruction in = new Instruction();
+			in.f = e.code[k].f;
+			in.l = e.code[k].l;
+			in.a = e.code[k].a.clone();
+			int line = e.code[k].line;
+			if (line >= e.from && line <= e.to)		// 内联进来的其他过程的代码可能已经移动，行号记为未知
+				in.line = line + shift;
+			if (e.ext[k] != null)
+				in.a.vn = ext[k];
+			else if (Optimizer.isJump(in.f) || Optimizer.isCall(in.f))
+				in.a.vn += base;
+			interp.code[interp.cx++] = in;
+		}
+		proc.adr = base + e.entry;
+		proc.size = e.size;
+		proc.hash = e.codeHash;
+
+		int[] at = new int[e.entries.length];
+		for (int k = 0; k < at.length; k++)
+			at[k] = e.entries[k] + base;
+		optimizer.reuse(e.reads, e.procs, at);
+
+		if (PL0.listswitch) {
+			String msg = "REUSED: procedure " + proc.name + " lines " + e.from + "-" + e.to;
+			System.out.println(msg);
+			PL0.fa.println(msg);
+		}
+		interp.listcode(base);
+		return true;
+	}
+
 	/**
 	 * 分析<变量说明部分>
 	 * @param lev 当前层次
@@ -272,13 +660,136 @@ public class Parser {
 		}
 	}
 
+	/**
+	 * 分析<数组说明部分>，数组的元素依次存放在堆栈帧中
+	 * @param lev 当前层次
+	 */
+	void parseArrayDeclaration(int lev) {
+		if (sym == Symbol.ident) {
+			boolean ok = table.enter(Objekt.array, lev, dx);
+			nextSym();
+			int n = 0;
+			if (sym == Symbol.lbracket) {
+				nextSym();
+				if (sym == Symbol.number && lex.num > 0 && lex.num <= PL0.amax) {
+					n = lex.num;
+					nextSym();
+				} else {
+					Err.report(262);				// 数组大小应为正整数
+				}
+				checkNextSymbol(Symbol.rbracket, 263);
+			} else {
+				Err.report(262);
+			}
+			if (ok) {
+				table.get(table.tx).size = n;
+				dx += n;
+			}
+		} else {
+			Err.report(261);					// array 后应是标识
+		}
+	}
+
+	/**
+	 * 分析<map说明部分>中的一项，名字后跟"[str]"时键为字符串，否则键为整数。
+	 * 堆栈帧中只占一个单元，存放运行时创建的map的编号
+	 * @param lev 当前层次
+	 */
+	void parseMapDeclaration(int lev) {
+		if (sym == Symbol.ident) {
+			boolean ok = table.enter(Objekt.map, lev, dx);
+			nextSym();
+			if (sym == Symbol.lbracket) {
+				nextSym();
+				if (sym == Symbol.strsym) {
+					if (ok)
+						table.get(table.tx).val = 1;
+					nextSym();
+				} else {
+					Err.report(272);				// map的键类型只能写str
+				}
+				checkNextSymbol(Symbol.rbracket, 263);
+			}
+			if (ok)
+				dx ++;
+		} else {
+			Err.report(271);					// map 后应是标识
+		}
+	}
+
+	/**
+	 * 分析map的键 "[" <表达式> "]"，生成取map编号和计算键的代码。键为字符串的map分析字符串表达式
+	 * @param item map在名字表中的项
+	 * @param fsys 后跟符号集
+	 * @param lev 当前层次
+	 * @return 取值运算的OPR编号，存入和判断键是否存在分别为它加1和加2
+	 */
+	private int parseKey(Table.Item item, long fsys, int lev) {
+		interp.gen(Fct.LOD, lev - item.level, item.adr);
+		if (sym != Symbol.lbracket) {
+			Err.report(274);						// 缺少map的键
+		} else {
+			nextSym();
+			if (item.val == 1)
+				parseStrExpression(fsys | SymSet.of(Symbol.rbracket), lev);
+			else
+				parseExpression(fsys | SymSet.of(Symbol.rbracket), lev);
+			checkNextSymbol(Symbol.rbracket, 263);
+		}
+		return item.val == 1 ? 30 : 27;
+	}
+
+	/**
+	 * 分析数组下标 "[" <表达式> "]"。常量下标在编译时检查范围，不生成代码，由调用者直接访问对应的单元；
+	 * 其他下标生成计算下标的代码和越界检查指令CHK，优化器能证明不会越界时再把CHK删去
+	 * @param item 数组在名字表中的项
+	 * @param fsys 后跟符号集
+	 * @param lev 当前层次
+	 * @return 常量下标，下标不是常量时返回-1
+	 */
+	private int parseIndex(Table.Item item, long fsys, int lev) {
+		int k = -1;
+		if (sym != Symbol.lbracket) {
+			Err.report(265);						// 缺少数组下标
+			return 0;
+		}
+		nextSym();
+		int cx0 = interp.cx;
+		parseExpression(fsys | SymSet.of(Symbol.rbracket), lev);
+		if (interp.cx == cx0 + 1 && interp.code[cx0].f == Fct.LIT) {
+			k = interp.code[cx0].a.vn;
+			interp.cx = cx0;
+			if (k >= item.size) {
+				Err.report(264);					// 常量下标越界
+				k = 0;
+			}
+		} else {
+			interp.gen(Fct.CHK, 0, item.size);
+		}
+		checkNextSymbol(Symbol.rbracket, 263);
+		return k;
+	}
+
+	/**
+	 * 生成取数组元素的代码，下标已由parseIndex()分析
+	 * @param item 数组在名字表中的项
+	 * @param k 常量下标，-1表示下标在栈顶
+	 * @param lev 当前层次
+	 */
+	private void genElement(Table.Item item, int k, int lev) {
+		if (k >= 0)
+			interp.gen(Fct.LOD, lev - item.level, item.adr + k);
+		else
+			interp.gen(Fct.LDA, lev - item.level, item.adr);
+	}
+
 	/**
 	 * 分析<语句>
 	 * @param fsys 后跟符号集
 	 * @param lev 当前层次
 	 */
-	void parseStatement(SymSet fsys, int lev) {
-		SymSet nxtlev;
+	void parseStatement(long fsys, int lev) {
+		long nxtlev;
 		// Wirth 的 PL/0 编译器使用一系列的if...else...来处理
 		// 但是你的助教认为下面的写法能够更加清楚地看出这个函数的处理逻辑
 		switch (sym) {
@@ -300,11 +811,18 @@ public class Parser {
 		case callsym:
 			parseCallStatement(fsys, lev);
 			break;
+		case spawnsym:
+			parseSpawnStatement(fsys, lev);
+			break;
+		case joinsym:
+			nextSym();
+			interp.gen(Fct.OPR, 0, 24);		// 等待本过程启动的所有任务结束
+			break;
 		case lbrace:
 			parseBraceStatement(fsys, lev, true);
 			break;
 		default:
-			nxtlev = new SymSet(symnum);
+			nxtlev = 0;
 			test(fsys, nxtlev, 141);
 			break;
 		}
@@ -315,23 +833,22 @@ public class Parser {
 	 * @param fsys 后跟符号集
 	 * @param lev 当前层次
 	 */
-	private void parseWhileStatement(SymSet fsys, int lev) {
+	private void parseWhileStatement(long fsys, int lev) {
 		int cx1, cx2;
-		SymSet nxtlev;
+		long nxtlev;
 		
 		cx1 = interp.cx;						// 保存判断条件操作的位置
 		nextSym();
-		nxtlev = (SymSet) fsys.clone();
-		nxtlev.set(Symbol.dosym);				// 后跟符号为do
+		nxtlev = fsys | SymSet.of(Symbol.dosym);	// 后跟符号为do
 
 		checkNextSymbol(Symbol.lparen, 151);
 
-		parseBoolExpr(nxtlev, lev);			// 分析<条件>
+		Fct jmp = parseBoolExpr(nxtlev, lev);	// 分析<条件>
 
 		checkNextSymbol(Symbol.rparen, 152);
 
 		cx2 = interp.cx;						// 保存循环体的结束的下一个位置
-		interp.gen(Fct.JPC, 0, 0);				// 生成条件跳转，但跳出循环的地址未知
+		interp.gen(jmp, 0, 0);					// 生成比较跳转，但跳出循环的地址未知
 
 		parseStatement(fsys, lev);				// 分析<语句>
 
@@ -344,18 +861,16 @@ public class Parser {
 	 * @param fsys 后跟符号集
 	 * @param lev 当前层次
 	 */
-	private void parseBraceStatement(SymSet fsys, int lev, boolean haveBrace) {
-		SymSet nxtlev;
+	private void parseBraceStatement(long fsys, int lev, boolean haveBrace) {
+		long nxtlev;
 		
 		if (haveBrace) {
 			nextSym();
 		}
-		nxtlev = (SymSet) fsys.clone();
-		nxtlev.set(Symbol.semicolon);
-		nxtlev.set(Symbol.rbrace);
+		nxtlev = fsys | SymSet.of(Symbol.semicolon) | SymSet.of(Symbol.rbrace);
 		parseStatement(nxtlev, lev);
 		// 循环分析{; <语句>}，直到下一个符号不是语句开始符号或收到end
-		while (statbegsys.get(sym) || sym == Symbol.semicolon) {
+		while (SymSet.contains(statbegsys, sym) || sym == Symbol.semicolon) {
 			checkNextSymbol(Symbol.semicolon, 161);
 
 			parseStatement(nxtlev, lev);
@@ -370,26 +885,24 @@ public class Parser {
 	 * @param fsys 后跟符号集
 	 * @param lev 当前层次
 	 */
-	private void parseIfStatement(SymSet fsys, int lev) {
+	private void parseIfStatement(long fsys, int lev) {
 		int cx1, cx2;
-		SymSet nxtlev;
+		long nxtlev;
 
 		nextSym();
 
-		nxtlev = (SymSet) fsys.clone();
-		nxtlev.set(Symbol.thensym);				// 后跟符号为then或do ???
-		nxtlev.set(Symbol.dosym);
+		nxtlev = fsys | SymSet.of(Symbol.thensym) | SymSet.of(Symbol.dosym);	// 后跟符号为then或do ???
 
 		checkNextSymbol(Symbol.lparen, 171);
 
-		parseBoolExpr(nxtlev, lev);			// 分析<条件>
+		Fct jmp = parseBoolExpr(nxtlev, lev);	// 分析<条件>
 
 		checkNextSymbol(Symbol.rparen, 172);
 
 		checkNextSymbol(Symbol.thensym, 173);
 
 		cx1 = interp.cx;						// 保存当前指令地址
-		interp.gen(Fct.JPC, 0, 0);				// 生成条件跳转指令，跳转地址未知，暂时写0
+		interp.gen(jmp, 0, 0);					// 生成比较跳转指令，跳转地址未知，暂时写0
 
 		parseStatement(fsys, lev);				// 处理then后的语句
 
@@ -416,7 +929,7 @@ public class Parser {
 	 * @param fsys 后跟符号集
 	 * @param lev 当前层次
 	 */
-	private void parseCallStatement(SymSet fsys, int lev) {
+	private void parseCallStatement(long fsys, int lev) {
 		int i;
 		nextSym();
 		if (sym == Symbol.ident) {
@@ -436,13 +949,38 @@ public class Parser {
 		}
 	}
 
+	/**
+	 * 分析<并行调用语句>，被调过程在新任务中与当前过程并行运行，join或当前过程返回时等待它结束
+	 * @param fsys 后跟符号集
+	 * @param lev 当前层次
+	 */
+	private void parseSpawnStatement(long fsys, int lev) {
+		int i;
+		nextSym();
+		if (sym == Symbol.ident) {
+			i = table.position(lex.id);
+			if (i == 0) {
+				Err.report(251);					// 过程未找到
+			} else {
+				Table.Item item = table.get(i);
+				if (item.kind == Objekt.procedure)
+					interp.gen(Fct.SPN, lev - item.level, item.adr);
+				else
+					Err.report(252);				// spawn后标识符应为过程
+			}
+			nextSym();
+		} else {
+			Err.report(253);						// spawn后应为标识符
+		}
+	}
+
 	/**
 	 * 分析<写语句>
 	 * @param fsys 后跟符号集
 	 * @param lev 当前层次
 	 */
-	private void parsePrintStatement(SymSet fsys, int lev) {
-		SymSet nxtlev;
+	private void parsePrintStatement(long fsys, int lev) {
+		long nxtlev;
 
 		nextSym();
 		if (sym == Symbol.lparen) {
@@ -454,23 +992,23 @@ public class Parser {
 				cnt++;
 
 				nextSym();
-				nxtlev = (SymSet) fsys.clone();
-				nxtlev.set(Symbol.rparen);
-				nxtlev.set(Symbol.comma);
+				nxtlev = fsys | SymSet.of(Symbol.rparen) | SymSet.of(Symbol.comma);
 
 				if (sym == Symbol.strsym) {
 					interp.gen(Fct.LITS, 0, new Data(lex.str));
+					interp.gen(Fct.OPR, 0, 21);
 					nextSym();
 				} else {
 					Table.Item item = table.get(table.position(lex.id));
 					if (item.kind == Objekt.string) {
 						parseStrExpression(nxtlev, lev);
+						interp.gen(Fct.OPR, 0, 21);
 					} else {
 						parseExpression(nxtlev, lev);
+						interp.gen(Fct.OPR, 0, 14);
 					}
 
 				}
-				interp.gen(Fct.OPR, 0, 14);
 
 			} while (sym == Symbol.comma);
 			
@@ -489,7 +1027,7 @@ public class Parser {
 	 * @param fsys 后跟符号集
 	 * @param lev 当前层次
 	 */
-	private void parseScanStatement(SymSet fsys, int lev) {
+	private void parseScanStatement(long fsys, int lev) {
 		int i;
 		
 		nextSym();
@@ -526,7 +1064,7 @@ public class Parser {
 			nextSym();
 		} else {
 			Err.report(204);					// 格式错误，应是右括号
-			while (!fsys.get(sym))
+			while (!SymSet.contains(fsys, sym))
 				nextSym();
 		}
 	}
@@ -536,9 +1074,9 @@ public class Parser {
 	 * @param fsys 后跟符号集
 	 * @param lev 当前层次
 	 */
-	private void parseAssignStatement(SymSet fsys, int lev) {
+	private void parseAssignStatement(long fsys, int lev) {
 		int i;
-		SymSet nxtlev;
+		long nxtlev;
 		
 		i = table.position(lex.id);
 		if (i > 0) {
@@ -548,7 +1086,7 @@ public class Parser {
 
 				checkNextSymbol(Symbol.becomes, 211);
 
-				nxtlev = (SymSet) fsys.clone();
+				nxtlev = fsys;
 				parseExpression(nxtlev, lev);
 				// parseExpression将产生一系列指令，但最终结果将会保存在栈顶，执行sto命令完成赋值
 				interp.gen(Fct.STO, lev - item.level, item.adr);
@@ -557,10 +1095,31 @@ public class Parser {
 
 				checkNextSymbol(Symbol.becomes, 212);
 				
-				nxtlev = (SymSet) fsys.clone();
+				nxtlev = fsys;
 				parseStrExpression(nxtlev, lev);
 				// parseStrExpression将产生一系列指令，但最终结果将会保存在栈顶，执行sts命令完成赋值
 				interp.gen(Fct.STOS, lev - item.level, item.adr);
+			} else if (item.kind == Objekt.array) {
+				nextSym();
+
+				int k = parseIndex(item, fsys | SymSet.of(Symbol.becomes), lev);
+				checkNextSymbol(Symbol.becomes, 211);
+
+				nxtlev = fsys;
+				parseExpression(nxtlev, lev);
+				if (k >= 0)
+					interp.gen(Fct.STO, lev - item.level, item.adr + k);
+				else
+					interp.gen(Fct.STA, lev - item.level, item.adr);	// 栈顶为值，次栈顶为下标
+			} else if (item.kind == Objekt.map) {
+				nextSym();
+
+				int op = parseKey(item, fsys | SymSet.of(Symbol.becomes), lev);
+				checkNextSymbol(Symbol.becomes, 211);
+
+				nxtlev = fsys;
+				parseExpression(nxtlev, lev);
+				interp.gen(Fct.OPR, 0, op + 1);			// 栈顶为值，其下为键和map编号
 			} else {
 				Err.report(213);						// 赋值语句格式错误
 			}
@@ -574,23 +1133,19 @@ public class Parser {
 	 * @param fsys 后跟符号集
 	 * @param lev 当前层次
 	 */
-	private void parseExpression(SymSet fsys, int lev) {
+	private void parseExpression(long fsys, int lev) {
 		Symbol addop;
-		SymSet nxtlev;
+		long nxtlev;
 		// 分析[+|-]<项>
 		if (sym == Symbol.plus || sym == Symbol.minus) {
 			addop = sym;
 			nextSym();
-			nxtlev = (SymSet) fsys.clone();
-			nxtlev.set(Symbol.plus);
-			nxtlev.set(Symbol.minus);
+			nxtlev = fsys | SymSet.of(Symbol.plus) | SymSet.of(Symbol.minus);
 			parseTerm(nxtlev, lev);
 			if (addop == Symbol.minus)
 				interp.gen(Fct.OPR, 0, 1);
 		} else {
-			nxtlev = (SymSet) fsys.clone();
-			nxtlev.set(Symbol.plus);
-			nxtlev.set(Symbol.minus);
+			nxtlev = fsys | SymSet.of(Symbol.plus) | SymSet.of(Symbol.minus);
 			parseTerm(nxtlev, lev);
 		}
 		
@@ -598,9 +1153,7 @@ public class Parser {
 		while (sym == Symbol.plus || sym == Symbol.minus) {
 			addop = sym;
 			nextSym();
-			nxtlev = (SymSet) fsys.clone();
-			nxtlev.set(Symbol.plus);
-			nxtlev.set(Symbol.minus);
+			nxtlev = fsys | SymSet.of(Symbol.plus) | SymSet.of(Symbol.minus);
 			parseTerm(nxtlev, lev);
 			if (addop == Symbol.plus)
 				interp.gen(Fct.OPR, 0, 2);
@@ -614,17 +1167,15 @@ public class Parser {
 	 * @param fsys 后跟符号集
 	 * @param lev 当前层次
 	 */
-	private void parseStrExpression(SymSet fsys, int lev) {
-		SymSet nxtlev;
+	private void parseStrExpression(long fsys, int lev) {
+		long nxtlev;
 
-		nxtlev = (SymSet) fsys.clone();
-		nxtlev.set(Symbol.plus);
+		nxtlev = fsys | SymSet.of(Symbol.plus);
 		parseStrTerm(nxtlev, lev);
 
 		while (sym == Symbol.plus) {
 			nextSym();
-			nxtlev = (SymSet) fsys.clone();
-			nxtlev.set(Symbol.plus);
+			nxtlev = fsys | SymSet.of(Symbol.plus);
 			parseStrTerm(nxtlev, lev);
 
 			interp.gen(Fct.OPR, 0, 18);
@@ -635,14 +1186,12 @@ public class Parser {
 	 * @param fsys 后跟符号集
 	 * @param lev 当前层次
 	 */
-	private void parseTerm(SymSet fsys, int lev) {
+	private void parseTerm(long fsys, int lev) {
 		Symbol mulop;
-		SymSet nxtlev;
+		long nxtlev;
 
 		// 分析<因子>
-		nxtlev = (SymSet) fsys.clone();
-		nxtlev.set(Symbol.times);
-		nxtlev.set(Symbol.slash);
+		nxtlev = fsys | SymSet.of(Symbol.times) | SymSet.of(Symbol.slash);
 		parseFactor(nxtlev, lev);
 		
 		// 分析{<乘法运算符><因子>}
@@ -661,12 +1210,11 @@ public class Parser {
 	 * @param fsys 后跟符号集
 	 * @param lev 当前层次
 	 */
-	private void parseStrTerm(SymSet fsys, int lev) {
-		SymSet nxtlev;
+	private void parseStrTerm(long fsys, int lev) {
+		long nxtlev;
 
 		// 分析<因子>
-		nxtlev = (SymSet) fsys.clone();
-		nxtlev.set(Symbol.times);
+		nxtlev = fsys | SymSet.of(Symbol.times);
 		parseStrFactor(nxtlev, lev);
 		
 		// 分析{ * num}
@@ -689,15 +1237,16 @@ public class Parser {
 	 * @param fsys 后跟符号集
 	 * @param lev 当前层次
 	 */
-	private void parseFactor(SymSet fsys, int lev) {
-		SymSet nxtlev;
+	private void parseFactor(long fsys, int lev) {
+		long nxtlev;
 		
 		test(facbegsys, fsys, 221);			// 检测因子的开始符号
 		// the original while... is problematic: var1(var2+var3)
 		// while(inset(sym, facbegsys))
-		if (facbegsys.get(sym)) {
+		if (SymSet.contains(facbegsys, sym)) {
 			if (sym == Symbol.ident) {			// 因子为常量或变量
 				int i = table.position(lex.id);
+				Table.Item array = null;
 				if (i > 0) {
 					Table.Item item = table.get(i);
 					switch (item.kind) {
@@ -710,14 +1259,23 @@ public class Parser {
 					case procedure:							// 名字为过程
 						Err.report(222);				// 不能为过程
 						break;
-					case string:							// 名字为字符串
+					case string:							// 名字为字符串，转换为数
 						interp.gen(Fct.LODS, lev - item.level, item.adr);
+						interp.gen(Fct.OPR, 0, 23);
+						break;
+					case array:								// 名字为数组或map，先分析下标或键
+					case map:
+						array = item;
 						break;
 					}
 				} else {
 					Err.report(223);					// 标识符未声明
 				}
 				nextSym();
+				if (array != null && array.kind == Objekt.map)
+					interp.gen(Fct.OPR, 0, parseKey(array, fsys, lev));
+				else if (array != null)
+					genElement(array, parseIndex(array, fsys, lev), lev);
 			} else if (sym == Symbol.number) {	// 因子为数 
 				int num = lex.num;
 				if (num > PL0.amax) {
@@ -728,8 +1286,7 @@ public class Parser {
 				nextSym();
 			} else if (sym == Symbol.lparen) {	// 因子为表达式
 				nextSym();
-				nxtlev = (SymSet) fsys.clone();
-				nxtlev.set(Symbol.rparen);
+				nxtlev = fsys | SymSet.of(Symbol.rparen);
 				parseExpression(nxtlev, lev);
 				if (sym == Symbol.rparen)
 					nextSym();
@@ -747,19 +1304,21 @@ public class Parser {
 	 * @param fsys 后跟符号集
 	 * @param lev 当前层次
 	 */
-	private void parseStrFactor(SymSet fsys, int lev) {
-		SymSet nxtlev;
+	private void parseStrFactor(long fsys, int lev) {
+		long nxtlev;
 		
 		test(facbegsys, fsys, 231);			// 检测因子的开始符号
 
-		if (facbegsys.get(sym)) {
+		if (SymSet.contains(facbegsys, sym)) {
 			if (sym == Symbol.ident) {			// 因子为 var 或 str
 				int i = table.position(lex.id);
+				Table.Item array = null;
 				if (i > 0) {
 					Table.Item item = table.get(i);
 					switch (item.kind) {
-					case variable:							// 名字为变量
+					case variable:							// 名字为变量，转换为字符串
 						interp.gen(Fct.LOD, lev - item.level, item.adr);
+						interp.gen(Fct.OPR, 0, 22);
 						break;
 					case string:							// 名字为字符串
 						// System.out.println("Item: " + item);
@@ -768,6 +1327,10 @@ public class Parser {
 					case procedure:							// 名字为过程
 						Err.report(232);			// 不能为过程
 						break;
+					case array:								// 名字为数组或map，元素转换为字符串
+					case map:
+						array = item;
+						break;
 					default:
 						Err.report(233);
 						break;
@@ -776,6 +1339,13 @@ public class Parser {
 					Err.report(234);				// 标识符未声明
 				}
 				nextSym();
+				if (array != null) {
+					if (array.kind == Objekt.map)
+						interp.gen(Fct.OPR, 0, parseKey(array, fsys, lev));
+					else
+						genElement(array, parseIndex(array, fsys, lev), lev);
+					interp.gen(Fct.OPR, 0, 22);
+				}
 			} else if (sym == Symbol.number) {	// 因子为数 
 				int num = lex.num;
 				if (num > PL0.amax) {
@@ -791,8 +1361,7 @@ public class Parser {
 			} else if (sym == Symbol.lparen) {	// 因子为表达式
 				nextSym();
 
-				nxtlev = (SymSet) fsys.clone();
-				nxtlev.set(Symbol.rparen);
+				nxtlev = fsys | SymSet.of(Symbol.rparen);
 				parseStrExpression(nxtlev, lev);
 
 				checkNextSymbol(Symbol.rparen, 236);
@@ -804,28 +1373,34 @@ public class Parser {
 	}
 
 	/**
-	 * 分析<条件>
+	 * 分析<条件>，条件不再计算出0/1留在栈顶，而是由调用者直接生成比较跳转指令
 	 * @param fsys 后跟符号集
 	 * @param lev 当前层次
+	 * @return 条件不成立时应生成的跳转指令
 	 */
-	private void parseBoolExpr(SymSet fsys, int lev) {
+	private Fct parseBoolExpr(long fsys, int lev) {
 		Symbol relop;
-		SymSet nxtlev;
+		long nxtlev;
 		
 		if (sym == Symbol.oddsym) {
 			// 分析 ODD<表达式>
 			nextSym();
 			parseExpression(fsys, lev);
-			interp.gen(Fct.OPR, 0, 6);
+			return Fct.JEV;
+		} else if (sym == Symbol.hassym) {
+			// 分析 has <map>"["<键>"]"，结果为1或0
+			nextSym();
+			int i = sym == Symbol.ident ? table.position(lex.id) : 0;
+			if (i > 0 && table.get(i).kind == Objekt.map) {
+				nextSym();
+				interp.gen(Fct.OPR, 0, parseKey(table.get(i), fsys, lev) + 2);
+			} else {
+				Err.report(276);					// has后应为map
+			}
+			return Fct.JPC;
 		} else {
 			// 分析<表达式><关系运算符><表达式>
-			nxtlev = (SymSet) fsys.clone();
-			nxtlev.set(Symbol.eql);
-			nxtlev.set(Symbol.neq);
-			nxtlev.set(Symbol.lss);
-			nxtlev.set(Symbol.leq);
-			nxtlev.set(Symbol.gtr);
-			nxtlev.set(Symbol.geq);
+			nxtlev = fsys | SymSet.of(Symbol.eql) | SymSet.of(Symbol.neq) | SymSet.of(Symbol.lss) | SymSet.of(Symbol.leq) | SymSet.of(Symbol.gtr) | SymSet.of(Symbol.geq);
 			parseExpression(nxtlev, lev);
 			if (sym == Symbol.eql || sym == Symbol.neq 
 					|| sym == Symbol.lss || sym == Symbol.leq
@@ -833,25 +1408,19 @@ public class Parser {
 				relop = sym;
 				nextSym();
 				parseExpression(fsys, lev);
-				switch (relop) {
+				switch (relop) {			// 取关系运算符的反面作为跳转条件
 				case eql:
-					interp.gen(Fct.OPR, 0, 8);
-					break;
+					return Fct.JNE;
 				case neq:
-					interp.gen(Fct.OPR, 0, 9);
-					break;
+					return Fct.JEQ;
 				case lss:
-					interp.gen(Fct.OPR, 0, 10);
-					break;
+					return Fct.JGE;
 				case geq:
-					interp.gen(Fct.OPR, 0, 11);
-					break;
+					return Fct.JLT;
 				case gtr:
-					interp.gen(Fct.OPR, 0, 12);
-					break;
+					return Fct.JLE;
 				case leq:
-					interp.gen(Fct.OPR, 0, 13);
-					break;
+					return Fct.JGT;
 				default:
 					break;
 				}
@@ -859,6 +1428,7 @@ public class Parser {
 				Err.report(241);
 			}
 		}
+		return Fct.JPC;
 	}
 	private void checkNextSymbol(Symbol s, int errcode) {
 		if (sym == s) {
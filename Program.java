@@ -0,0 +1,169 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ *　　嵌入使用的接口：把源程序编译成一个不可变的Program，之后可以在多个线程中同时运行任意多次，
+ *　　每次运行有自己的解释器、输入和输出。编译器的各部件通过PL0的静态变量协作，因此编译在一个
+ *　　全局锁下进行；编译和运行都不写任何文件，需要源程序清单时由调用者给出输出流。
+ *
+ *　　编译出错时抛出Error，其消息为带错误标记的源程序清单。每次编译都用新的增量编译缓存，
+ *　　因此多处理器上总是用并行后端优化，线程数默认为处理器个数。
+ */
+public final class Program {
+	/**
+	 * 编译时并行优化的线程数，为1时每个过程生成完立即优化
+	 */
+	public static volatile int jobs = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * 编译生成的代码，只读，各次运行共用
+	 */
+	private final Interpreter code;
+
+	/**
+	 * @param code 编译生成代码的解释器，此后不再修改
+	 */
+	private Program(Interpreter code) {
+		this.code = code;
+		RuntimeStats.register();
+	}
+
+	/**
+	 * 编译一个程序
+	 * @param source 源程序
+	 * @return 已编译的程序
+	 */
+	public static Program compile(String source) {
+		return compile(new StringReader(source), null);
+	}
+
+	/**
+	 * 编译一个以UTF-8编码的程序，不改变source的位置
+	 * @param source 源程序
+	 * @return 已编译的程序
+	 */
+	public static Program compile(ByteBuffer source) {
+		return compile(StandardCharsets.UTF_8.decode(source.duplicate()).toString());
+	}
+
+	/**
+	 * 编译一个程序
+	 * @param source 源程序
+	 * @param listing 源程序清单（各行对应的首地址和错误标记，即fa1.tmp的内容），为null时不输出
+	 * @return 已编译的程序
+	 */
+	public static Program compile(Reader source, PrintStream listing) {
+		ByteArrayOutputStream text = new ByteArrayOutputStream();
+		PrintStream nul = new PrintStream(OutputStream.nullOutputStream());
+		synchronized (PL0.class) {
+			PrintStream console = PL0.console;
+			boolean list = PL0.listswitch, table = PL0.tableswitch;
+			int jobs = PL0.jobs;
+			boolean units = PL0.unitcache;
+			PL0.console = nul;
+			PL0.fa = nul;
+			PL0.fas = nul;
+			PL0.fa1 = new PrintStream(listing == null ? text : new Tee(text, listing), true, StandardCharsets.UTF_8);
+			PL0.listswitch = PL0.tableswitch = false;
+			PL0.jobs = Program.jobs;
+			PL0.unitcache = false;			// 不写模块缓存
+			try {
+				PL0 pl0 = new PL0(new BufferedReader(source, 4096), new CompileCache());
+				boolean ok;
+				try {
+					ok = pl0.build();
+				} catch (Error e) {
+					throw new Error(e.getMessage() + "\n" + text.toString(StandardCharsets.UTF_8));
+				}
+				if (!ok)
+					throw new Error("Errors in pl/0 program\n" + text.toString(StandardCharsets.UTF_8));
+				return new Program(PL0.interp);
+			} finally {
+				PL0.console = console;
+				PL0.listswitch = list;
+				PL0.tableswitch = table;
+				PL0.jobs = jobs;
+				PL0.unitcache = units;
+			}
+		}
+	}
+
+	/**
+	 * 同时写到两个流
+	 */
+	private static class Tee extends OutputStream {
+		private final OutputStream a, b;
+
+		Tee(OutputStream a, OutputStream b) {
+			this.a = a;
+			this.b = b;
+		}
+
+		@Override
+		public void write(int c) throws IOException {
+			a.write(c);
+			b.write(c);
+		}
+
+		@Override
+		public void write(byte[] buf, int off, int len) throws IOException {
+			a.write(buf, off, len);
+			b.write(buf, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			a.flush();
+			b.flush();
+		}
+	}
+
+	/**
+	 * @return 代码条数
+	 */
+	public int size() {
+		return code.cx;
+	}
+
+	/**
+	 * 为一次运行构造独立的解释器。调用者可以先设置配额、trace，再用interpret()或start()/run()运行
+	 * @param in 程序的输入
+	 * @param out 程序的输出
+	 * @return 新的解释器
+	 */
+	public Interpreter instance(BufferedReader in, PrintStream out) {
+		return new Interpreter(code, in, out);
+	}
+
+	/**
+	 * 运行一次程序，直到程序结束才返回
+	 * @param in 程序的输入
+	 * @param out 程序的输出
+	 * @return 结束时的状态，HALTED或ABORTED（此时out中有“Aborted: 原因”）
+	 */
+	public Status run(BufferedReader in, PrintStream out) {
+		Interpreter interp = instance(in, out);
+		interp.interpret();
+		return interp.status();
+	}
+
+	/**
+	 * 以给定的输入运行一次程序
+	 * @param input 程序的输入，每行对应一次scan
+	 * @return 程序的全部输出
+	 */
+	public String run(String input) {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		PrintStream out = new PrintStream(output, false, StandardCharsets.UTF_8);
+		run(new BufferedReader(new StringReader(input)), out);
+		out.flush();
+		return output.toString(StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,147 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
+/**
+ *　　编译器和解释器的运行时统计。计数器都是LongAdder，多个线程同时更新时几乎没有争用；
+ *　　解释器只在每次run()返回时（一个时间片或整个程序结束）更新一次，不影响指令循环。
+ *　　统计总是进行，register()把它注册为平台MBean后才能从JMX看到。
+ */
+public class RuntimeStats implements RuntimeStatsMBean {
+	/**
+	 * 编译时间分布的区间上界（毫秒），最后一个区间没有上界
+	 */
+	private static final long[] BOUNDS = {1, 10, 100, 1000};
+
+	static final LongAdder compiled = new LongAdder();
+	static final LongAdder errors = new LongAdder();
+	static final LongAdder compileNanos = new LongAdder();
+	static final LongAdder[] histogram = new LongAdder[BOUNDS.length + 1];
+	static final LongAdder cacheHits = new LongAdder();
+	static final LongAdder cacheMisses = new LongAdder();
+	static final LongAdder executed = new LongAdder();
+	static final LongAdder stringBytes = new LongAdder();
+	static final LongAdder stackDepth = new LongAdder();
+	static final LongAccumulator peakStack = new LongAccumulator(Math::max, 0);
+	static final LongAdder active = new LongAdder();
+
+	static {
+		for (int k = 0; k < histogram.length; k++)
+			histogram[k] = new LongAdder();
+	}
+
+	private static boolean registered = false;
+
+	/**
+	 * 把统计注册为平台MBean l24:type=Runtime，重复调用没有作用
+	 */
+	public static synchronized void register() {
+		if (registered)
+			return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new RuntimeStats(), new ObjectName("l24:type=Runtime"));
+			registered = true;
+		} catch (Exception e) {
+			System.out.println("Can't register MBean: " + e);
+		}
+	}
+
+	/**
+	 * 记录一次编译
+	 * @param nanos 编译用时
+	 * @param ok 是否编译成功
+	 * @param hits 复用的过程个数
+	 * @param misses 重新编译并存入缓存的过程个数
+	 */
+	static void compiled(long nanos, boolean ok, long hits, long misses) {
+		compiled.increment();
+		if (!ok)
+			errors.increment();
+		compileNanos.add(nanos);
+		long ms = nanos / 1000000;
+		int k = 0;
+		while (k < BOUNDS.length && ms >= BOUNDS[k])
+			k++;
+		histogram[k].increment();
+		cacheHits.add(hits);
+		cacheMisses.add(misses);
+	}
+
+	public long getProgramsCompiled() {
+		return compiled.sum();
+	}
+
+	public long getCompileErrors() {
+		return errors.sum();
+	}
+
+	public long getCompileTimeTotalMillis() {
+		return compileNanos.sum() / 1000000;
+	}
+
+	public long[] getCompileTimeHistogram() {
+		long[] h = new long[histogram.length];
+		for (int k = 0; k < h.length; k++)
+			h[k] = histogram[k].sum();
+		return h;
+	}
+
+	public String[] getCompileTimeBuckets() {
+		String[] b = new String[BOUNDS.length + 1];
+		for (int k = 0; k < BOUNDS.length; k++)
+			b[k] = "<" + BOUNDS[k] + "ms";
+		b[BOUNDS.length] = ">=" + BOUNDS[BOUNDS.length - 1] + "ms";
+		return b;
+	}
+
+	public long getCacheHits() {
+		return cacheHits.sum();
+	}
+
+	public long getCacheMisses() {
+		return cacheMisses.sum();
+	}
+
+	public double getCacheHitRate() {
+		long h = cacheHits.sum(), m = cacheMisses.sum();
+		return h + m == 0 ? 0 : (double) h / (h + m);
+	}
+
+	public long getInstructionsExecuted() {
+		return executed.sum();
+	}
+
+	public long getStringBytesAllocated() {
+		return stringBytes.sum();
+	}
+
+	public long getStackDepth() {
+		return stackDepth.sum();
+	}
+
+	public long getPeakStackDepth() {
+		return peakStack.get();
+	}
+
+	public long getActiveInterpreters() {
+		return active.sum();
+	}
+
+	/**
+	 * 清零累计的计数，运行栈深度和未结束的解释器个数反映当前状态，不清零
+	 */
+	public void reset() {
+		compiled.reset();
+		errors.reset();
+		compileNanos.reset();
+		for (LongAdder h : histogram)
+			h.reset();
+		cacheHits.reset();
+		cacheMisses.reset();
+		executed.reset();
+		stringBytes.reset();
+		peakStack.reset();
+	}
+}
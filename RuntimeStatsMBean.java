@@ -0,0 +1,25 @@
+/**
+ *　　运行时统计的MBean接口，在JConsole等工具中以 l24:type=Runtime 出现
+ */
+public interface RuntimeStatsMBean {
+	long getProgramsCompiled();
+	long getCompileErrors();
+	long getCompileTimeTotalMillis();
+	/**
+	 * @return 编译时间的分布，各项依次对应getCompileTimeBuckets()中的区间
+	 */
+	long[] getCompileTimeHistogram();
+	String[] getCompileTimeBuckets();
+	long getCacheHits();
+	long getCacheMisses();
+	double getCacheHitRate();
+	long getInstructionsExecuted();
+	long getStringBytesAllocated();
+	/**
+	 * @return 所有未结束的解释器在上一次暂停或结束时的运行栈深度之和
+	 */
+	long getStackDepth();
+	long getPeakStackDepth();
+	long getActiveInterpreters();
+	void reset();
+}
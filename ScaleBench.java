@@ -0,0 +1,151 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+
+/**
+ *　　伸缩性测试：用Generator生成一系列规模递增的程序，测量编译时间和运行时间。每个规模重复若干次取最小值，
+ *　　并计算相邻两个规模之间时间对规模的对数斜率，斜率明显大于1说明有超线性的部分，在该行后标出“*”。
+ *　　运行时间同时给出每条指令的平均纳秒数，它随规模增大说明解释器本身变慢（如缓存失效），而不只是指令变多。
+ *
+ *　　用法：java ScaleBench [-param 参数] [-sizes n,n,...] [-reps n] [-plot 文件名] [Generator的其他参数]
+ *　　参数默认为vars，是Generator的参数名之一；给出-plot时把结果写入“文件名.dat”，并写一个gnuplot脚本
+ *　　“文件名.gp”，用gnuplot画出编译和运行时间对规模的双对数图。
+ */
+public class ScaleBench {
+	/**
+	 * 斜率超过这个值的区间标为超线性
+	 */
+	static final double superlinear = 1.25;
+
+	public static void main(String[] args) throws IOException {
+		String param = "vars", plot = null;
+		long[] sizes = { 100, 200, 400, 800, 1600, 3200 };
+		int reps = 5;
+		Generator g = new Generator();
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			switch (args[i]) {
+			case "-param":
+				param = args[i + 1];
+				break;
+			case "-sizes":
+				String[] v = args[i + 1].split(",");
+				sizes = new long[v.length];
+				for (int k = 0; k < v.length; k++)
+					sizes[k] = Long.parseLong(v[k].trim());
+				break;
+			case "-reps":
+				reps = Integer.parseInt(args[i + 1]);
+				break;
+			case "-plot":
+				plot = args[i + 1];
+				break;
+			default:
+				if (!args[i].startsWith("-") || !g.set(args[i].substring(1), Long.parseLong(args[i + 1]))) {
+					System.out.println("Unknown option " + args[i]);
+					return;
+				}
+			}
+		}
+		if (!g.set(param, sizes[0])) {
+			System.out.println("Unknown parameter " + param);
+			return;
+		}
+
+		// 预热：先把全部规模跑一遍，让JIT编译编译器和解释器的热点代码
+		for (long size : sizes) {
+			g.set(param, size);
+			measure(g, 1);
+		}
+
+		PrintStream dat = plot == null ? null : new PrintStream(plot + ".dat");
+		if (dat != null)
+			dat.println("# " + param + " lines code compile_ms run_ms instructions");
+		System.out.printf("%10s %8s %8s %12s %6s %12s %6s %14s %9s%n",
+				param, "lines", "code", "compile(ms)", "slope", "run(ms)", "slope", "instructions", "ns/insn");
+		double[] prev = null;
+		for (long size : sizes) {
+			g.set(param, size);
+			double[] r = measure(g, reps);
+			String cs = "", rs = "";
+			boolean flag = false;
+			if (prev != null) {
+				double c = slope(prev[0], size, prev[3], r[2]);
+				double e = slope(prev[0], size, prev[4], r[3]);
+				cs = String.format("%.2f", c);
+				rs = String.format("%.2f", e);
+				flag = c > superlinear || e > superlinear;
+			}
+			System.out.printf("%10d %8d %8d %12.3f %6s %12.3f %6s %14d %9.2f%s%n",
+					size, (long) r[0], (long) r[1], r[2], cs, r[3], rs, (long) r[4],
+					r[4] > 0 ? r[3] * 1e6 / r[4] : 0, flag ? " *" : "");
+			if (dat != null)
+				dat.printf("%d %d %d %.3f %.3f %d%n", size, (long) r[0], (long) r[1], r[2], r[3], (long) r[4]);
+			prev = new double[] { size, r[0], r[1], r[2], r[3], r[4] };
+		}
+		if (dat != null) {
+			dat.close();
+			try (PrintStream gp = new PrintStream(plot + ".gp")) {
+				gp.println("set terminal png size 800,600");
+				gp.println("set output '" + plot + ".png'");
+				gp.println("set logscale xy");
+				gp.println("set xlabel '" + param + "'");
+				gp.println("set ylabel 'ms'");
+				gp.println("set key left top");
+				gp.println("plot '" + plot + ".dat' using 1:4 with linespoints title 'compile', \\");
+				gp.println("     '" + plot + ".dat' using 1:5 with linespoints title 'run'");
+			}
+			System.out.println("wrote " + plot + ".dat and " + plot + ".gp (gnuplot " + plot + ".gp)");
+		}
+	}
+
+	/**
+	 * 每个规模的编译和运行各至少重复这么长时间（纳秒），小程序因此会重复多于reps次
+	 */
+	static final long budget = 200000000L;
+
+	/**
+	 * 生成程序，重复编译和运行
+	 * @param reps 最少重复次数
+	 * @return 源程序行数、代码条数、最短编译时间(ms)、最短运行时间(ms)、执行的指令数
+	 */
+	static double[] measure(Generator g, int reps) {
+		String source = g.generate();
+		int lines = 0;
+		for (int k = 0; k < source.length(); k++) {
+			if (source.charAt(k) == '\n')
+				lines ++;
+		}
+		long compile = Long.MAX_VALUE, run = Long.MAX_VALUE, executed = 0;
+		Program program = null;
+		long start = System.nanoTime();
+		for (int k = 0; k < reps || System.nanoTime() - start < budget; k++) {
+			long t0 = System.nanoTime();
+			program = Program.compile(source);
+			compile = Math.min(compile, System.nanoTime() - t0);
+		}
+		// 全局变量和各层过程的局部变量都在运行栈中，按规模放宽运行栈深度
+		int stack = Math.max(500, g.vars + 4 * g.procs + 100);
+		start = System.nanoTime();
+		for (int k = 0; k < reps || System.nanoTime() - start < budget; k++) {
+			Interpreter interp = program.instance(new BufferedReader(new StringReader("")), Interpreter.DISCARD);
+			interp.maxStack = stack;
+			long t0 = System.nanoTime();
+			interp.interpret();
+			run = Math.min(run, System.nanoTime() - t0);
+			if (interp.status() != Status.HALTED)
+				throw new Error("generated program did not halt: " + interp.error);
+			executed = interp.executed;
+		}
+		return new double[] { lines, program.size(), compile / 1e6, run / 1e6, executed };
+	}
+
+	/**
+	 * @return 时间对规模的对数斜率
+	 */
+	static double slope(double s0, double s1, double t0, double t1) {
+		if (s0 <= 0 || t0 <= 0 || t1 <= 0 || s1 == s0)
+			return 0;
+		return Math.log(t1 / t0) / Math.log(s1 / s0);
+	}
+}
@@ -1,5 +1,9 @@
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 
 /**
  *　　词法分析器负责的工作是从源代码里面读取文法符号，这是PL/0编译器的主要组成部分之一。
@@ -16,6 +20,31 @@ public class Scanner {
 	 */
 	private char[] line;
 	
+	/**
+	 * 当前行是否只含ASCII字符。是时不用line而用bytes，空白、标识符和数字按8个字节一组识别
+	 */
+	private boolean ascii;
+	
+	/**
+	 * 只含ASCII字符的当前行的字节，后面至少补8个0，从行内任何位置都能读出一个完整的字
+	 */
+	private byte[] bytes = new byte[256];
+	
+	/**
+	 * 以小端序从字节数组中读取long，字的最低字节是行中最靠前的字符
+	 */
+	private static final VarHandle WORD = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+	
+	/**
+	 * 每个字节都是1和0x80的字
+	 */
+	private static final long ONES = 0x0101010101010101L, HIGH = 0x8080808080808080L;
+	
+	/**
+	 * span()识别的字符类
+	 */
+	private static final int BLANK = 0, IDENT = 1, DIGIT = 2;
+	
 	/**
 	 * 当前行的长度（line length）
 	 */
@@ -71,6 +100,50 @@ public class Scanner {
 	 * @see Table#enter
 	 */
 	public String str;
+
+	// 整个源文件在第一次调用getsym()时就被切分成记号并保存下来，语法分析器按顺序取用，
+	// 也可以跳过一段记号（例如增量编译时没有改动的过程）
+	/**
+	 * 记号个数
+	 */
+	private int ntok = 0;
+	/**
+	 * 下一个要交给语法分析器的记号
+	 */
+	private int pos = 0;
+	/**
+	 * 各记号的符号值
+	 */
+	private Symbol[] tsym;
+	/**
+	 * 各记号的标识符、数值或字符串
+	 */
+	private String[] tid, tstr;
+	private int[] tnum;
+	/**
+	 * 读入各记号后的字符位置，报错时用来定位
+	 */
+	private int[] tcc;
+	/**
+	 * 各记号所在的行号（从0开始）
+	 */
+	private int[] tline;
+	/**
+	 * 各记号的散列值
+	 */
+	private long[] thash;
+	/**
+	 * 源文件的各行
+	 */
+	private java.util.ArrayList<String> lines = new java.util.ArrayList<String>();
+	/**
+	 * 已经输出到清单中的行数
+	 */
+	private int echoed = 0;
+	/**
+	 * 是否已读到文件末尾
+	 */
+	private boolean eof = false;
 	
 	/**
 	 * 初始化词法分析器
@@ -88,6 +161,8 @@ public class Scanner {
 		ssym['/'] = Symbol.slash;
 		ssym['('] = Symbol.lparen;
 		ssym[')'] = Symbol.rparen;
+		ssym['['] = Symbol.lbracket;
+		ssym[']'] = Symbol.rbracket;
 		ssym['='] = Symbol.eql;
 		ssym[','] = Symbol.comma;
 		ssym['.'] = Symbol.period;
@@ -99,27 +174,34 @@ public class Scanner {
 		ssym['"'] = Symbol.quote;
 		
 		// 设置保留字名字,按照字母顺序，便于折半查找
-		word = new String[] {"begin", "call", "const", "do", "else", "end", "if", "main",
-			"odd", "print", "procedure", "scan", "str", "then", "var", "while"};
+		word = new String[] {"array", "begin", "call", "const", "do", "else", "end", "has", "if", "import", "join",
+			"main", "map", "module", "odd", "print", "procedure", "scan", "spawn", "str", "then", "var", "while"};
 		
 		// 设置保留字符号
 		wsym = new Symbol[PL0.norw];
-		wsym[0] = Symbol.beginsym;
-		wsym[1] = Symbol.callsym;
-		wsym[2] = Symbol.constsym;
-		wsym[3] = Symbol.dosym;
-		wsym[4] = Symbol.elsesym;
-		wsym[5] = Symbol.endsym;
-		wsym[6] = Symbol.ifsym;
-		wsym[7] = Symbol.mainsym;
-		wsym[8] = Symbol.oddsym;
-		wsym[9] = Symbol.printsym;
-		wsym[10] = Symbol.procsym;
-		wsym[11] = Symbol.scansym;
-		wsym[12] = Symbol.strsym;
-		wsym[13] = Symbol.thensym;
-		wsym[14] = Symbol.varsym;
-		wsym[15] = Symbol.whilesym;
+		wsym[0] = Symbol.arraysym;
+		wsym[1] = Symbol.beginsym;
+		wsym[2] = Symbol.callsym;
+		wsym[3] = Symbol.constsym;
+		wsym[4] = Symbol.dosym;
+		wsym[5] = Symbol.elsesym;
+		wsym[6] = Symbol.endsym;
+		wsym[7] = Symbol.hassym;
+		wsym[8] = Symbol.ifsym;
+		wsym[9] = Symbol.importsym;
+		wsym[10] = Symbol.joinsym;
+		wsym[11] = Symbol.mainsym;
+		wsym[12] = Symbol.mapsym;
+		wsym[13] = Symbol.modulesym;
+		wsym[14] = Symbol.oddsym;
+		wsym[15] = Symbol.printsym;
+		wsym[16] = Symbol.procsym;
+		wsym[17] = Symbol.scansym;
+		wsym[18] = Symbol.spawnsym;
+		wsym[19] = Symbol.strsym;
+		wsym[20] = Symbol.thensym;
+		wsym[21] = Symbol.varsym;
+		wsym[22] = Symbol.whilesym;
 	}
 	
 	/**
@@ -129,30 +211,150 @@ public class Scanner {
 		String l = "";
 		try {
 			if (cc == ll) {
-				while (l.equals(""))
-					l = in.readLine().toLowerCase() + "\n";
+				String r = in.readLine();
+				if (r == null) {
+					eof = true;
+					ch = 0;
+					return;
+				}
+				l = r.toLowerCase() + "\n";
 				ll = l.length();
 				cc = 0;
-				line = l.toCharArray();
-				System.out.println(PL0.interp.cx + " " + l);
-				PL0.fa1.println(PL0.interp.cx + " " + l);
+				byte[] b = l.getBytes(StandardCharsets.UTF_8);
+				ascii = b.length == ll;		// UTF-8编码与字符个数相同即只含ASCII字符
+				if (ascii) {
+					if (bytes.length < ll + 8)
+						bytes = new byte[Math.max(ll + 8, bytes.length * 2)];
+					System.arraycopy(b, 0, bytes, 0, ll);
+					java.util.Arrays.fill(bytes, ll, ll + 8, (byte) 0);
+				} else {
+					line = l.toCharArray();
+				}
+				lines.add(l);
 			}
 		} catch (IOException e) {
 			throw new Error("program imcomplete");
 		}
-		ch = line[cc];
+		ch = ascii ? (char) bytes[cc] : line[cc];
 		cc ++;
 	}
 	
 	/**
-	 * 词法分析，获取一个词法符号，是词法分析器的重点
+	 * 从当前行的位置k开始，找出第一个不属于字符类kind的字符。每次读取8个字节，
+	 * 对每个字节并行判断是否在某个范围内，得到的掩码中最低的非零字节就是要找的位置。
+	 * 行后补的0不属于任何字符类，所以不会越过行尾
+	 * @param k 起始位置，不超过ll
+	 * @param kind 字符类：BLANK、IDENT或DIGIT
+	 * @return 位置，不超过ll
+	 */
+	private int span(int k, int kind) {
+		for (;; k += 8) {
+			long w = (long) WORD.get(bytes, k);
+			long m;
+			if (kind == BLANK)				// 与Character.isWhitespace()对ASCII字符的判断相同
+				m = inRange(w, '\t', '\r') | inRange(w, 0x1c, ' ');
+			else if (kind == IDENT)
+				m = inRange(w, 'a', 'z') | inRange(w, '0', '9');
+			else
+				m = inRange(w, '0', '9');
+			m = ~m & HIGH;
+			if (m != 0)
+				return k + (Long.numberOfTrailingZeros(m) >>> 3);
+		}
+	}
+	
+	/**
+	 * 并行判断字中的每个字节是否在[lo, hi]内，要求每个字节都小于0x80，这时各字节相加都不会向高字节进位
+	 * @return 在范围内的字节最高位为1，其余位为0
+	 */
+	private static long inRange(long w, int lo, int hi) {
+		return (w + ONES * (0x80 - lo)) & ~(w + ONES * (0x7f - hi)) & HIGH;
+	}
+	
+	/**
+	 * 词法分析，获取一个词法符号。第一次调用时先把整个源文件切分为记号
 	 */
 	public void getsym() {
+		if (tsym == null) {
+			Timings.Phase prev = Timings.enter(Timings.Phase.scan);
+			tokenize();
+			Timings.exit(prev);
+		}
+		if (pos >= ntok)
+			throw new Error("program imcomplete");
+
+		// 输出到当前记号为止的源程序行及其对应的首地址
+		while (echoed <= tline[pos]) {
+			PL0.console.println(PL0.interp.cx + " " + lines.get(echoed));
+			PL0.fa1.println(PL0.interp.cx + " " + lines.get(echoed));
+			echoed ++;
+		}
+		sym = tsym[pos];
+		id = tid[pos];
+		num = tnum[pos];
+		str = tstr[pos];
+		cc = tcc[pos];
+		pos ++;
+	}
+
+	/**
+	 * 把整个源文件切分为记号
+	 */
+	private void tokenize() {
+		int cap = 256;
+		tsym = new Symbol[cap];
+		tid = new String[cap];
+		tstr = new String[cap];
+		tnum = new int[cap];
+		tcc = new int[cap];
+		tline = new int[cap];
+		thash = new long[cap];
+		for (;;) {
+			while (Character.isWhitespace(ch)) {	// 跳过所有空白字符
+				if (ascii)
+					cc = span(cc, BLANK);			// 一次跳过本行的一串空白
+				getch();
+			}
+			if (eof)
+				break;
+			int ln = lines.size() - 1;
+			str = null;						// 关键字str与字符串常量共用同一个符号值
+			lex();
+
+			if (ntok == cap) {
+				cap *= 2;
+				tsym = java.util.Arrays.copyOf(tsym, cap);
+				tid = java.util.Arrays.copyOf(tid, cap);
+				tstr = java.util.Arrays.copyOf(tstr, cap);
+				tnum = java.util.Arrays.copyOf(tnum, cap);
+				tcc = java.util.Arrays.copyOf(tcc, cap);
+				tline = java.util.Arrays.copyOf(tline, cap);
+				thash = java.util.Arrays.copyOf(thash, cap);
+			}
+			tsym[ntok] = sym;
+			tid[ntok] = id;
+			tstr[ntok] = str;
+			tnum[ntok] = num;
+			tcc[ntok] = cc;
+			tline[ntok] = ln;
+			long h = sym.ordinal();
+			if (sym == Symbol.ident)
+				h = h * 31 + id.hashCode();
+			else if (sym == Symbol.number)
+				h = h * 31 + num;
+			else if (sym == Symbol.strsym && str != null)
+				h = h * 31 + str.hashCode();
+			thash[ntok] = h;
+			ntok ++;
+		}
+	}
+
+	/**
+	 * 从当前字符开始识别一个词法符号
+	 */
+	private void lex() {
 		// Wirth 的 PL/0 编译器使用一系列的if...else...来处理
 		// 但是你的助教认为下面的写法能够更加清楚地看出这个函数的处理逻辑
-		while (Character.isWhitespace(ch))		// 跳过所有空白字符
-			getch();
-
 		if (ch >= 'a' && ch <= 'z') {
 			// 关键字或者一般标识符
 			matchKeywordOrIdentifier();
@@ -166,19 +368,96 @@ public class Scanner {
 			matchOperator();
 		}
 	}
+
+	/**
+	 * 当前记号（最近一次getsym()取得的记号）的位置
+	 * @return 记号序号
+	 */
+	public int position() {
+		return pos - 1;
+	}
+
+	/**
+	 * 跳过一段记号，下一次getsym()将取得序号为k的记号
+	 * @param k 记号序号
+	 */
+	public void seek(int k) {
+		pos = k;
+	}
+
+	/**
+	 * 记号所在的源程序行号
+	 * @param k 记号序号
+	 * @return 行号，从1开始
+	 */
+	public int line(int k) {
+		if (k < 0 || ntok == 0)
+			return 0;
+		return tline[Math.min(k, ntok - 1)] + 1;
+	}
+
+	/**
+	 * 计算一段记号的散列值
+	 * @param from 起始记号序号
+	 * @param to 结束记号序号（不含）
+	 * @return 散列值
+	 */
+	public long hash(int from, int to) {
+		long h = 0xcbf29ce484222325L;
+		for (int k = from; k < to; k++)
+			h = (h ^ thash[k]) * 0x100000001b3L;
+		return h;
+	}
+
+	/**
+	 * 从过程说明中冒号后的第一个记号开始，找出该过程分程序结束的位置。
+	 * 分程序由不含大括号的声明、嵌套的过程说明和一对大括号括起来的语句组成。
+	 * @param k 分程序第一个记号的序号
+	 * @return 分程序右大括号之后的记号序号，格式不正确时返回-1
+	 */
+	public int blockEnd(int k) {
+		while (k < ntok) {
+			if (tsym[k] == Symbol.procsym) {
+				k = blockEnd(k + 3);			// 跳过 procedure <id> :
+				if (k < 0)
+					return -1;
+				if (k < ntok && tsym[k] == Symbol.semicolon)
+					k ++;
+			} else if (tsym[k] == Symbol.lbrace) {
+				int depth = 0;
+				for (; k < ntok; k++) {
+					if (tsym[k] == Symbol.lbrace)
+						depth ++;
+					else if (tsym[k] == Symbol.rbrace && --depth == 0)
+						return k + 1;
+				}
+				return -1;
+			} else {
+				k ++;
+			}
+		}
+		return -1;
+	}
 	
 	/**
 	 * 分析关键字或者一般标识符
 	 */
 	void matchKeywordOrIdentifier() {
 		int i;
-		StringBuilder sb = new StringBuilder(PL0.al);
 		// 首先把整个单词读出来
-		do {
-			sb.append(ch);
+		if (ascii) {
+			int start = cc - 1;
+			cc = span(cc, IDENT);
+			id = new String(bytes, start, cc - start, StandardCharsets.ISO_8859_1);
 			getch();
-		} while (ch >= 'a' && ch <= 'z' || ch >= '0' && ch <= '9');
-		id = sb.toString();
+		} else {
+			StringBuilder sb = new StringBuilder(PL0.al);
+			do {
+				sb.append(ch);
+				getch();
+			} while (ch >= 'a' && ch <= 'z' || ch >= '0' && ch <= '9');
+			id = sb.toString();
+		}
 		
 		// 然后搜索是不是保留字（请注意使用的是什么搜索方法）
 		// System.out.println("id: " + id);
@@ -201,11 +480,20 @@ public class Scanner {
 		int k = 0;
 		sym = Symbol.number;
 		num = 0;
-		do {
-			num = 10*num + Character.digit(ch, 10);
-			k++;
+		if (ascii) {
+			int start = cc - 1;
+			cc = span(cc, DIGIT);
+			for (int j = start; j < cc; j++)
+				num = 10*num + (bytes[j] - '0');
+			k = cc - start;
 			getch();
-		} while (ch>='0' && ch<='9'); 				// 获取数字的值
+		} else {
+			do {
+				num = 10*num + Character.digit(ch, 10);
+				k++;
+				getch();
+			} while (ch>='0' && ch<='9'); 				// 获取数字的值
+		}
 		k--;
 		if (k > PL0.nmax)
 			Err.report(25);
@@ -254,8 +542,7 @@ public class Scanner {
 			break;
 		default:		// 其他为单字符操作符（如果符号非法则返回nil）
 			sym = ssym[ch];
-			if (sym != Symbol.period)
-				getch();
+			getch();		// 句点也要跳过，整个源文件一次切分为记号，停在句点上会反复得到它
 			break;
 		}
 	}	
@@ -267,7 +554,7 @@ public class Scanner {
 		sym = Symbol.strsym;
 		str = "";
 		getch();
-		while (ch != '"') {
+		while (ch != '"' && !eof) {
 			str += ch;
 			getch();
 		}
@@ -0,0 +1,121 @@
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ *　　单线程的会话调度器。所有会话在同一个线程中轮流运行，每次最多执行quantum条指令（时间片），
+ *　　时间片用完的会话排到就绪队列末尾；scan没有输入的会话离开就绪队列，收到输入后再回来。
+ *　　与每个会话占用一个线程的SessionHost相比，会话数不受线程数限制，各会话也能公平地分得运行时间。
+ *　　程序中的join（包括过程返回时对spawn任务的等待）会阻塞调度器线程，直到子任务结束。
+ */
+public class Scheduler implements Runnable {
+	/**
+	 * 已编译的程序
+	 */
+	private Interpreter program;
+
+	/**
+	 * 时间片，即每次最多执行的指令条数
+	 */
+	private long quantum;
+
+	/**
+	 * 就绪队列，只由调度器线程访问
+	 */
+	private ArrayDeque<Session> ready = new ArrayDeque<Session>();
+
+	/**
+	 * 新打开或收到输入的会话，由其他线程加入
+	 */
+	private LinkedBlockingQueue<Session> woken = new LinkedBlockingQueue<Session>();
+
+	/**
+	 * 调度器线程
+	 */
+	private Thread thread;
+
+	private volatile boolean stopped = false;
+
+	/**
+	 * 构造调度器并启动调度器线程
+	 * @param program 已编译的程序
+	 * @param quantum 时间片（指令条数）
+	 */
+	public Scheduler(Interpreter program, long quantum) {
+		this.program = program;
+		this.quantum = quantum;
+		RuntimeStats.register();
+		thread = new Thread(this, "pl0-scheduler");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * 打开一个新会话，它将在调度器线程中运行
+	 * @return 新会话
+	 */
+	public Session open() {
+		Session s = new Session(program);
+		s.scheduler = this;
+		s.future = new CompletableFuture<Void>();
+		s.interp.start();
+		woken.add(s);
+		return s;
+	}
+
+	/**
+	 * 会话有了新的输入，让它回到就绪队列
+	 * @param s 会话
+	 */
+	void wake(Session s) {
+		woken.add(s);
+	}
+
+	/**
+	 * 停止调度器线程
+	 */
+	public void shutdown() {
+		stopped = true;
+		thread.interrupt();
+	}
+
+	/**
+	 * 调度器线程的主循环
+	 */
+	public void run() {
+		try {
+			while (!stopped) {
+				if (ready.isEmpty())
+					enqueue(woken.take());
+				for (Session s = woken.poll(); s != null; s = woken.poll())
+					enqueue(s);
+				if (ready.isEmpty())
+					continue;
+
+				Session s = ready.poll();
+				s.queued = false;
+				Status st;
+				try {
+					st = s.interp.run(quantum);
+				} catch (Throwable e) {
+					s.failure = e;
+					st = Status.HALTED;
+				}
+				if (st == Status.RUNNING)
+					enqueue(s);
+				else if (st != Status.NEEDS_INPUT)
+					((CompletableFuture<?>) s.future).complete(null);
+				// 等待输入的会话在收到输入时由wake()放回
+			}
+		} catch (InterruptedException e) {
+			// 调度器被停止
+		}
+	}
+
+	private void enqueue(Session s) {
+		if (!s.queued && !s.future.isDone()) {
+			s.queued = true;
+			ready.add(s);
+		}
+	}
+}
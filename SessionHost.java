@@ -0,0 +1,258 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ *　　按行传递的输入通道。会话的使用者用send()送入一行，解释器通过BufferedReader.readLine()读取，
+ *　　没有输入时阻塞。关闭后读完剩余的行即到达文件尾。
+ */
+class LineChannel extends Reader {
+	/**
+	 * 表示通道已关闭的标记
+	 */
+	private static final String EOF = new String("");
+
+	private LinkedBlockingQueue<String> lines = new LinkedBlockingQueue<String>();
+
+	/**
+	 * 当前正在读取的行及读取位置
+	 */
+	private String line = "";
+	private int pos = 0;
+
+	/**
+	 * 送入一行输入
+	 * @param s 一行内容，不含换行符
+	 */
+	public void send(String s) {
+		lines.add(s + "\n");
+	}
+
+	@Override
+	public int read(char[] cbuf, int off, int len) throws IOException {
+		if (pos == line.length()) {
+			if (line == EOF)
+				return -1;
+			try {
+				line = lines.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("interrupted");
+			}
+			pos = 0;
+			if (line == EOF) {
+				lines.add(EOF);
+				return -1;
+			}
+		}
+		int n = Math.min(len, line.length() - pos);
+		line.getChars(pos, pos + n, cbuf, off);
+		pos += n;
+		return n;
+	}
+
+	@Override
+	public void close() {
+		lines.add(EOF);
+	}
+}
+
+/**
+ *　　一个会话：一个独立的解释器运行一个已编译的程序，拥有自己的输入通道和输出缓冲。
+ */
+class Session {
+	/**
+	 * 会话的输入通道
+	 */
+	private LineChannel input = new LineChannel();
+
+	/**
+	 * 会话的输出
+	 */
+	private ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+	/**
+	 * 运行程序的解释器
+	 */
+	Interpreter interp;
+
+	/**
+	 * 程序运行结束的通知
+	 */
+	Future<?> future;
+
+	/**
+	 * 运行会话的调度器，在独立线程中运行时为null
+	 */
+	Scheduler scheduler;
+
+	/**
+	 * 是否在调度器的就绪队列中，只由调度器线程访问
+	 */
+	boolean queued;
+
+	/**
+	 * 程序异常结束（如运行栈溢出）的原因，正常结束时为null
+	 */
+	volatile Throwable failure;
+
+	Session(Interpreter program) {
+		PrintStream out;
+		try {
+			out = new PrintStream(output, true, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			out = new PrintStream(output, true);
+		}
+		interp = new Interpreter(program, new BufferedReader(input, 256), out);
+	}
+
+	/**
+	 * 运行程序，在会话所属的线程中调用
+	 */
+	void run() {
+		try {
+			interp.interpret();
+		} catch (Throwable e) {
+			failure = e;
+		}
+	}
+
+	/**
+	 * 向程序送入一行输入
+	 * @param line 一行内容
+	 */
+	public void send(String line) {
+		if (scheduler != null) {
+			interp.provide(line);
+			scheduler.wake(this);
+		} else {
+			input.send(line);
+		}
+	}
+
+	/**
+	 * 关闭输入，程序之后的scan读到文件尾
+	 */
+	public void closeInput() {
+		if (scheduler != null) {
+			interp.closeInput();
+			scheduler.wake(this);
+		} else {
+			input.close();
+		}
+	}
+
+	/**
+	 * 等待程序运行结束
+	 */
+	public void await() throws Exception {
+		future.get();
+	}
+
+	/**
+	 * @return 程序是否已经运行结束
+	 */
+	public boolean done() {
+		return future.isDone();
+	}
+
+	/**
+	 * @return 程序到目前为止的输出
+	 */
+	public String output() {
+		try {
+			return output.toString("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			return output.toString();
+		}
+	}
+}
+
+/**
+ *　　多会话执行宿主。一个程序编译一次，每个会话用自己的解释器在一个虚拟线程中运行，scan在等待输入时
+ *　　只挂起虚拟线程而不占用平台线程，因此大量交互式会话可以共存于一个JVM中。运行环境不支持
+ *　　虚拟线程（Java 21以前）时退回到使用小栈的平台线程。
+ */
+public class SessionHost {
+	/**
+	 * 已编译的程序
+	 */
+	private Interpreter program;
+
+	/**
+	 * 运行会话的线程池
+	 */
+	private ExecutorService executor;
+
+	/**
+	 * 是否使用虚拟线程
+	 */
+	public final boolean virtual;
+
+	/**
+	 * 构造执行宿主
+	 * @param program 已编译的程序
+	 */
+	public SessionHost(Interpreter program) {
+		this.program = program;
+		RuntimeStats.register();
+		ExecutorService e = null;
+		try {
+			e = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException | RuntimeException ex) {
+			// 不支持虚拟线程
+		}
+		virtual = e != null;
+		if (e == null) {
+			e = Executors.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(null, r, "pl0-session", 256 * 1024);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		executor = e;
+	}
+
+	/**
+	 * 编译一个程序，源程序清单不写入fa1.tmp
+	 * @param fname 源程序文件名
+	 * @return 已编译的程序
+	 */
+	public static Interpreter compile(String fname) throws IOException {
+		PrintStream nul = new PrintStream(OutputStream.nullOutputStream());
+		PL0.fa1 = nul;
+		PL0 pl0 = new PL0(new BufferedReader(new FileReader(fname), 4096));
+		if (!pl0.compile())
+			throw new Error("Errors in pl/0 program");
+		return PL0.interp;
+	}
+
+	/**
+	 * 打开一个新会话并开始运行程序
+	 * @return 新会话
+	 */
+	public Session open() {
+		Session s = new Session(program);
+		s.future = executor.submit(s::run);
+		return s;
+	}
+
+	/**
+	 * 关闭宿主，不再接受新会话
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+}
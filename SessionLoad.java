@@ -0,0 +1,73 @@
+/**
+ *　　多会话执行宿主的负载测试。同时打开大量会话，它们都停在scan上等待输入，统计此时的线程数和堆内存，
+ *　　然后逐轮给每个会话送入输入直到程序结束，检查每个会话的输出。
+ *　　用法：java SessionLoad [-s] [源程序] [会话数...]，默认运行test/session.l24，会话数为100、1000和10000。
+ *　　加-s时所有会话由一个Scheduler线程按时间片轮流运行，否则每个会话一个线程。
+ *　　test/session.l24 读入整数直到读到0，然后输出它们的和。
+ */
+public class SessionLoad {
+	/**
+	 * 每个会话送入的非零整数个数
+	 */
+	static final int rounds = 5;
+
+	public static void main(String[] args) throws Exception {
+		int k = 0;
+		boolean scheduled = args.length > 0 && args[0].equals("-s");
+		if (scheduled)
+			k ++;
+		String fname = args.length > k ? args[k] : "test/session.l24";
+		int[] counts = { 100, 1000, 10000 };
+		if (args.length > k + 1) {
+			counts = new int[args.length - k - 1];
+			for (int i = k + 1; i < args.length; i++)
+				counts[i - k - 1] = Integer.parseInt(args[i]);
+		}
+
+		Interpreter program = SessionHost.compile(fname);
+		SessionHost host = scheduled ? null : new SessionHost(program);
+		Scheduler scheduler = scheduled ? new Scheduler(program, 10000) : null;
+		System.out.println();
+		System.out.println("threads: " + (scheduled ? "one scheduler" : host.virtual ? "virtual" : "platform"));
+		System.out.println("sessions  open(ms)  threads  heap(MB)  run(ms)  failed");
+
+		for (int n : counts) {
+			System.gc();
+			long t0 = System.nanoTime();
+			Session[] sessions = new Session[n];
+			for (int i = 0; i < n; i++)
+				sessions[i] = scheduled ? scheduler.open() : host.open();
+			long opened = System.nanoTime();
+
+			// 所有会话都在等待输入
+			Thread.sleep(200);
+			int threads = Thread.activeCount();
+			Runtime rt = Runtime.getRuntime();
+			long heap = (rt.totalMemory() - rt.freeMemory()) >> 20;
+
+			long t1 = System.nanoTime();
+			for (int r = 1; r <= rounds; r++) {
+				for (int i = 0; i < n; i++)
+					sessions[i].send(Integer.toString(i + r));
+			}
+			for (int i = 0; i < n; i++)
+				sessions[i].send("0");
+			int failed = 0;
+			for (int i = 0; i < n; i++) {
+				sessions[i].await();
+				String out = sessions[i].output().trim();
+				int expect = rounds * i + rounds * (rounds + 1) / 2;
+				if (sessions[i].failure != null || !out.endsWith(Integer.toString(expect)))
+					failed ++;
+			}
+			long t2 = System.nanoTime();
+
+			System.out.printf("%8d  %8d  %7d  %8d  %7d  %6d%n", n, (opened - t0) / 1000000,
+					threads, heap, (t2 - t1) / 1000000, failed);
+		}
+		if (scheduled)
+			scheduler.shutdown();
+		else
+			host.shutdown();
+	}
+}
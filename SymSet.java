@@ -1,41 +1,33 @@
-import java.util.BitSet;
-
 /**
- * 我们把 java.util.BitSet 包装一下，以便于编写代码
+ * 符号集合。Symbol的个数不超过64，因此一个集合就用long的各个二进制位表示：
+ * 并集就是按位或，语法分析时求后跟符号集不再需要复制BitSet
  */
-public class SymSet extends BitSet {
+public final class SymSet {
 
-	/**
-	 * 这个域没有特别意义 
-	 */
-	private static final long serialVersionUID = 10215102415L;
+	static {
+		if (Symbol.values().length > Long.SIZE)
+			throw new Error("Too many symbols for SymSet");
+	}
 
-	/**
-	 * 构造一个符号集合
-	 * @param nbits 这个集合的容量
-	 */
-	public SymSet(int nbits) {
-		super(nbits);
+	private SymSet() {
 	}
 
 	/**
-	 * 把一个符号放到集合中
-	 * @param s 要放置的符号
+	 * 构造只含一个符号的集合
+	 * @param s 集合中的符号
+	 * @return 符号集合
 	 */
-	public void set(Symbol s) {
-		set(s.ordinal());
+	public static long of(Symbol s) {
+		return 1L << s.ordinal();
 	}
-	
+
 	/**
 	 * 检查一个符号是否在集合中
+	 * @param set 符号集合
 	 * @param s 要检查的符号
 	 * @return 若符号在集合中，则返回true，否则返回false
 	 */
-	public boolean get(Symbol s) {
-		return get(s.ordinal());
+	public static boolean contains(long set, Symbol s) {
+		return (set & (1L << s.ordinal())) != 0;
 	}
-
-	public String toString() {
-		return super.toString();
-	}	
 }
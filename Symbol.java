@@ -7,5 +7,7 @@ public enum Symbol {
 	comma, semicolon, period, becomes, 
 	beginsym, endsym, ifsym, thensym, whilesym, printsym,
 	scansym, dosym, callsym, constsym, varsym, procsym,
-	mainsym, lbrace, rbrace, strsym, not, startsym, elsesym, quote
+	mainsym, lbrace, rbrace, strsym, not, startsym, elsesym, quote,
+	spawnsym, joinsym, arraysym, lbracket, rbracket, mapsym, hassym,
+	importsym, modulesym
 }
@@ -2,7 +2,7 @@
  * 符号类型，为避免和Java的关键字Object冲突，我们改成Objekt
  */
 enum Objekt {
-	constant, variable, procedure, string
+	constant, variable, procedure, string, array, map
 }
 
 /**
@@ -22,7 +22,7 @@ public class Table {
 		 */
 		Objekt kind;
 		/**
-		 * 数值，仅const使用
+		 * 数值，const使用；map的键为字符串时为1，为整数时为0
 		 */
 		int val;
 		/**
@@ -34,9 +34,13 @@ public class Table {
 		 */
 		int adr;
 		/**
-		 * 需要分配的数据区空间, 仅procedure使用
+		 * 需要分配的数据区空间, procedure使用；array为元素个数
 		 */
 		int size; 
+		/**
+		 * 过程代码的散列值，仅procedure使用。内联了该过程的代码在增量编译时据此判断是否过时，0表示未知
+		 */
+		long hash;
 
 		public String toString() {
 			return "name: " + name + ", kind: " + kind + ", level: " + level + ", adr: " + adr;
@@ -60,6 +64,8 @@ public class Table {
 	 * @return 名字表第 i 项的内容
 	 */
 	public Item get(int i) {
+		if (i >= table.length)
+			table = java.util.Arrays.copyOf(table, Math.max(i + 1, table.length * 2));
 		if (table[i] == null) {
 			table[i] = new Item();
 			table[i].name = "";
@@ -74,16 +80,28 @@ public class Table {
 	 * @param dx  当前应分配的变量的相对地址，注意调用enter()后dx要加一
 	 */
 	public boolean enter(Objekt k, int lev, int dx) {
-		if (inTable()) {
-			System.out.println("Err: Objekt " + PL0.lex.id + " already defined");
-			PL0.fa1.println("Err: Objekt " + PL0.lex.id + " already defined");
+		return enter(PL0.lex.id, k, lev, dx);	// 注意id和num都是从词法分析器获得
+	}
+
+	/**
+	 * 把给定名字的符号登陆到名字表中，用于从模块导入的名字
+	 * @param name 名字
+	 * @param k   该符号的类型
+	 * @param lev 名字所在的层次
+	 * @param dx  变量的相对地址
+	 */
+	public boolean enter(String name, Objekt k, int lev, int dx) {
+		if (inTable(name)) {
+			PL0.console.println("Err: Objekt " + name + " already defined");
+			PL0.fa1.println("Err: Objekt " + name + " already defined");
 			return false;
 		}
 
 		tx ++;
 		Item item = get(tx);
-		item.name = PL0.lex.id;			// 注意id和num都是从词法分析器获得
+		item.name = name;
 		item.kind = k;
+		item.hash = 0;
 		switch (k) {
 		case variable:					// 变量名字 
 			item.level = lev;
@@ -93,6 +111,15 @@ public class Table {
 			item.level = lev;
 			item.adr = dx;
 			break;
+		case array:						// 数组名字，元素从adr开始连续存放
+			item.level = lev;
+			item.adr = dx;
+			break;
+		case map:						// map名字，adr处存放map的编号
+			item.level = lev;
+			item.adr = dx;
+			item.val = 0;
+			break;
 		case procedure:					// 过程名字
 			item.level = lev;
 			break;
@@ -123,6 +150,12 @@ public class Table {
 			case string:
 				msg = "    " + i + " str   " + table[i].name + " lev=" + table[i].level + " addr=" + table[i].adr;
 				break;
+			case array:
+				msg = "    " + i + " array " + table[i].name + " lev=" + table[i].level + " addr=" + table[i].adr + " size=" + table[i].size;
+				break;
+			case map:
+				msg = "    " + i + " map   " + table[i].name + " lev=" + table[i].level + " addr=" + table[i].adr + (table[i].val == 1 ? " key=str" : " key=num");
+				break;
 			case procedure:
 				msg = "    " + i + " proc  " + table[i].name + " lev=" + table[i].level + " addr=" + table[i].adr + " size=" + table[i].size;
 				break;
@@ -146,9 +179,22 @@ public class Table {
 		return 0;
 	}
 
-	private boolean inTable() {
+	/**
+	 * 根据入口地址查找过程
+	 * @param adr 过程的入口地址
+	 * @return 名字表中入口地址为adr的过程，找不到则返回null
+	 */
+	public Item procedure(int adr) {
+		for (int i = tx; i > 0; i--)
+			if (get(i).kind == Objekt.procedure && get(i).adr == adr)
+				return get(i);
+
+		return null;
+	}
+
+	private boolean inTable(String name) {
 		for (int i = 0; i < tx; ++i) {
-			if (get(i).name.equals(PL0.lex.id)) {
+			if (get(i).name.equals(name)) {
 				return true;
 			}
 		}
@@ -0,0 +1,218 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ *　　编译和运行各阶段的计时。阶段可以嵌套（词法分析在第一次取符号时进行，优化在语法分析中
+ *　　每个过程结束时进行），统计时各阶段互不包含：进入内层阶段时外层阶段暂停计时。
+ *　　语法分析和代码生成是一遍完成的，合为parse阶段。
+ *
+ *　　每段计时结束时提交一个JFR事件l24.Phase，每编译或复用一个过程提交一个l24.Procedure，
+ *　　用 -XX:StartFlightRecording 运行即可记录。JFR没有启动时不加载事件类，以免拖慢启动。
+ *　　-timings 选项在运行结束后打印报告。
+ */
+public class Timings {
+	/**
+	 * 阶段
+	 */
+	enum Phase {
+		scan, parse, optimize, link, run
+	}
+
+	@Name("l24.Phase")
+	@Label("L24 Phase")
+	@Category("L24")
+	@Description("编译或运行的一个阶段，不含嵌套在其中的其他阶段")
+	static class PhaseEvent extends jdk.jfr.Event {
+		@Label("Phase")
+		String phase;
+
+		@Label("Allocated")
+		@jdk.jfr.DataAmount
+		long allocated;
+
+		@Label("Code Size Change")
+		long code;
+	}
+
+	@Name("l24.Procedure")
+	@Label("L24 Procedure")
+	@Category("L24")
+	@Description("编译一个过程（含其内层过程）或从增量编译缓存复用它")
+	static class ProcedureEvent extends jdk.jfr.Event {
+		@Label("Name")
+		String name;
+
+		@Label("Level")
+		int level;
+
+		@Label("Instructions")
+		int instructions;
+
+		@Label("Frame Size")
+		int frame;
+
+		@Label("Reused")
+		boolean reused;
+	}
+
+	/**
+	 * 是否统计分配的字节数并打印报告
+	 */
+	static boolean enabled = false;
+
+	private static final int N = Phase.values().length;
+
+	/**
+	 * 各阶段累计的时间（纳秒）、分配的字节数和代码量的变化，run阶段为执行的指令数
+	 */
+	private static long[] wall = new long[N], bytes = new long[N], code = new long[N];
+
+	/**
+	 * 当前阶段及其本段计时的起点，markBytes为-1表示本段不统计分配的字节数
+	 */
+	private static Phase current = null;
+	private static long mark, markBytes;
+	private static int markCx;
+
+	private static ThreadMXBean threads;
+
+	/**
+	 * 进入一个阶段
+	 * @param p 新阶段
+	 * @return 原来的阶段，退出时交给exit()
+	 */
+	static Phase enter(Phase p) {
+		Phase prev = current;
+		charge();
+		current = p;
+		return prev;
+	}
+
+	/**
+	 * 退出当前阶段，回到原来的阶段
+	 * @param prev enter()返回的阶段
+	 */
+	static void exit(Phase prev) {
+		charge();
+		current = prev;
+	}
+
+	/**
+	 * 把从上一次切换到现在的时间等计入当前阶段，并开始新的一段
+	 */
+	private static void charge() {
+		long now = System.nanoTime();
+		boolean jfr = FlightRecorder.isInitialized();
+		boolean measure = enabled || jfr;
+		long alloc = measure && markBytes >= 0 ? allocated() - markBytes : 0;	// 上一段没有统计时记为0
+		int cx = PL0.interp == null ? 0 : PL0.interp.cx;
+		if (current != null) {
+			int k = current.ordinal();
+			wall[k] += now - mark;
+			bytes[k] += alloc;
+			code[k] += cx - markCx;
+		}
+		if (jfr)
+			Jfr.phase(current, alloc, cx - markCx);
+		mark = now;
+		markBytes = measure ? allocated() : -1;
+		markCx = cx;
+	}
+
+	/**
+	 * @return 当前线程累计分配的字节数，JVM不支持时为0
+	 */
+	private static long allocated() {
+		if (threads == null)
+			threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return 0;
+	}
+
+	/**
+	 * 开始编译一个过程
+	 * @return 过程事件，过程编译完后交给procedure()；JFR没有启动时为null
+	 */
+	static Object beginProcedure() {
+		return FlightRecorder.isInitialized() ? Jfr.beginProcedure() : null;
+	}
+
+	/**
+	 * 一个过程编译完或被复用
+	 * @param e beginProcedure()返回的事件
+	 */
+	static void procedure(Object e, String name, int level, int instructions, int frame, boolean reused) {
+		if (e != null)
+			Jfr.procedure(e, name, level, instructions, frame, reused);
+	}
+
+	/**
+	 * 提交JFR事件。只有JFR已经启动时才会用到这个类，事件类随之加载
+	 */
+	private static class Jfr {
+		/**
+		 * 正在计时的阶段事件
+		 */
+		private static PhaseEvent event;
+
+		static void phase(Phase p, long allocated, long code) {
+			if (p != null && event != null && event.shouldCommit()) {
+				event.phase = p.name();
+				event.allocated = allocated;
+				event.code = code;
+				event.commit();
+			}
+			event = new PhaseEvent();
+			event.begin();
+		}
+
+		static Object beginProcedure() {
+			ProcedureEvent e = new ProcedureEvent();
+			e.begin();
+			return e;
+		}
+
+		static void procedure(Object o, String name, int level, int instructions, int frame, boolean reused) {
+			ProcedureEvent e = (ProcedureEvent) o;
+			if (!e.shouldCommit())
+				return;
+			e.name = name;
+			e.level = level;
+			e.instructions = instructions;
+			e.frame = frame;
+			e.reused = reused;
+			e.commit();
+		}
+	}
+
+	/**
+	 * 记录运行阶段执行的指令数
+	 */
+	static void executed(long n) {
+		code[Phase.run.ordinal()] += n;
+	}
+
+	/**
+	 * 打印各阶段的报告
+	 */
+	static void report() {
+		System.out.println();
+		System.out.printf("%-10s %12s %14s %14s%n", "phase", "time(ms)", "alloc(bytes)", "instructions");
+		long tw = 0, tb = 0;
+		for (Phase p : Phase.values()) {
+			int k = p.ordinal();
+			tw += wall[k];
+			tb += bytes[k];
+			System.out.printf("%-10s %12.3f %14d %14d%n", p, wall[k] / 1e6, bytes[k], code[k]);
+		}
+		System.out.printf("%-10s %12.3f %14d%n", "total", tw / 1e6, tb);
+		System.out.print("(instructions: code size change for compile phases, instructions executed for run)");
+	}
+}
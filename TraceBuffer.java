@@ -0,0 +1,72 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ *　　执行轨迹的环形缓冲区。每执行一条指令记录一项：指令地址、操作码和执行前的栈顶值，
+ *　　三者压缩在一个long中（地址24位，操作码8位，栈顶值32位），记录时不分配对象。
+ *　　缓冲区满后覆盖最早的记录，因此总是保留最近执行的capacity条指令。
+ *
+ *　　dump()写出的文件依次为：MAGIC、总记录数、保留的记录（按执行顺序）、代码条数和每条指令
+ *　　（操作码、层次差、参数、源程序行号），由TraceView解码。
+ */
+public class TraceBuffer {
+	static final int MAGIC = 0x4c323454;
+
+	private final long[] buf;
+	private final int mask;
+
+	/**
+	 * 已记录的总条数
+	 */
+	private long n = 0;
+
+	/**
+	 * 构造缓冲区
+	 * @param capacity 保留的记录数，向上取为2的幂
+	 */
+	public TraceBuffer(int capacity) {
+		int c = Integer.highestOneBit(Math.max(capacity, 1) - 1) << 1;
+		buf = new long[Math.max(c, 1)];
+		mask = buf.length - 1;
+	}
+
+	/**
+	 * 记录一条指令
+	 * @param pc 指令地址
+	 * @param op 操作码（Fct的序号）
+	 * @param top 执行前的栈顶值
+	 */
+	final void record(int pc, int op, int top) {
+		buf[(int) n & mask] = ((long) pc << 40) | ((long) op << 32) | (top & 0xffffffffL);
+		n++;
+	}
+
+	/**
+	 * @return 已记录的总条数
+	 */
+	public long count() {
+		return n;
+	}
+
+	/**
+	 * 把保留的记录和代码写入文件
+	 * @param fname 文件名
+	 * @param code 程序代码
+	 * @param cx 代码条数
+	 */
+	public void dump(String fname, Instruction[] code, int cx) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fname)))) {
+			out.writeInt(MAGIC);
+			out.writeLong(n);
+			long first = Math.max(0, n - buf.length);
+			out.writeInt((int) (n - first));
+			for (long k = first; k < n; k++)
+				out.writeLong(buf[(int) k & mask]);
+			out.writeInt(cx);
+			for (int k = 0; k < cx; k++)
+				CompileCache.writeInstruction(out, code[k]);
+		}
+	}
+}
@@ -0,0 +1,63 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ *　　执行轨迹查看器，解码TraceBuffer.dump()写出的文件，按执行顺序列出每条指令的地址、
+ *　　源程序行号、指令和执行前的栈顶值。给出源程序时，行号变化处同时列出该行源程序。
+ *
+ *　　用法：java TraceView [轨迹文件] [源程序] [-n 条数]，轨迹文件默认为trace.tmp，-n只列出最后若干条
+ */
+public class TraceView {
+	public static void main(String[] args) throws IOException {
+		String fname = "trace.tmp", source = null;
+		int last = Integer.MAX_VALUE;
+		int argc = 0;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-n"))
+				last = Integer.parseInt(args[++i]);
+			else if (argc++ == 0)
+				fname = args[i];
+			else
+				source = args[i];
+		}
+
+		List<String> lines = source == null ? null : Files.readAllLines(Paths.get(source), StandardCharsets.UTF_8);
+		Fct[] ops = Fct.values();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fname)))) {
+			if (in.readInt() != TraceBuffer.MAGIC) {
+				System.out.println(fname + " is not a trace file");
+				return;
+			}
+			long total = in.readLong();
+			int kept = in.readInt();
+			long[] rec = new long[kept];
+			for (int k = 0; k < kept; k++)
+				rec[k] = in.readLong();
+			int cx = in.readInt();
+			Instruction[] code = new Instruction[cx];
+			for (int k = 0; k < cx; k++)
+				code[k] = CompileCache.readInstruction(in);
+
+			System.out.println(total + " instructions executed, last " + kept + " recorded");
+			int prevLine = -1;
+			for (int k = Math.max(0, kept - last); k < kept; k++) {
+				int pc = (int) (rec[k] >>> 40);
+				int op = (int) (rec[k] >>> 32) & 0xff;
+				int top = (int) rec[k];
+				Instruction i = pc < cx ? code[pc] : null;
+				int line = i == null ? 0 : i.line;
+				if (lines != null && line != prevLine && line > 0 && line <= lines.size())
+					System.out.println("      " + line + ": " + lines.get(line - 1).trim());
+				prevLine = line;
+				String text = i == null ? ops[op].toString() : i.f + " " + i.l + " " + i.a;
+				System.out.printf("%10d  pc=%-5d line=%-5d %-16s top=%d%n", total - kept + k, pc, line, text, top);
+			}
+		}
+	}
+}